@@ -0,0 +1,65 @@
+package com.ftp;
+
+import java.util.concurrent.Semaphore;
+
+// Limits the amount of work the server takes on at once so that an overload sheds
+// requests with a "busy" response instead of slowing down every connection
+class Admission {
+    private final Semaphore connections;
+    private final Semaphore transfers;
+    private final long maxInFlightBytes;
+    private final int retryAfter;
+
+    // Bytes currently held by running transfers (guarded by this)
+    private long inFlightBytes = 0;
+
+    Admission(int maxConnections, int maxTransfers, long maxInFlightBytes, int retryAfter) {
+        this.connections = new Semaphore(maxConnections);
+        this.transfers = new Semaphore(maxTransfers);
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.retryAfter = retryAfter;
+    }
+
+    // Returns false if the connection limit has been reached
+    boolean tryAcquireConnection() {
+        return connections.tryAcquire();
+    }
+
+    void releaseConnection() {
+        connections.release();
+    }
+
+    // Returns false if either the transfer limit or the in-flight byte limit has been reached
+    // A single transfer larger than the byte limit is still admitted when nothing else is in flight
+    boolean tryAcquireTransfer(long bytes) {
+        if (!transfers.tryAcquire()) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (inFlightBytes == 0 || inFlightBytes + bytes <= maxInFlightBytes) {
+                inFlightBytes += bytes;
+                return true;
+            }
+        }
+
+        transfers.release();
+        return false;
+    }
+
+    void releaseTransfer(long bytes) {
+        synchronized (this) {
+            inFlightBytes -= bytes;
+        }
+        transfers.release();
+    }
+
+    // How long a rejected client is told to wait before trying again (ms)
+    int getRetryAfter() {
+        return retryAfter;
+    }
+
+    String busyMessage() {
+        return "Server busy, retry after " + retryAfter + "ms";
+    }
+}
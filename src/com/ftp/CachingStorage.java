@@ -0,0 +1,269 @@
+package com.ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Files held by an upstream server, with recently downloaded ones kept in a local cache
+// Every read checks the upstream's size and modification time (a single STAT, shared with the stat
+// a download makes just before opening the file), and is only
+// fetched from upstream if the cached copy is missing or out of date. Writes, deletes and listings
+// go straight to the upstream server
+// Cached copies are stored as "<name>@<upstream modification time>" so they survive a restart,
+// and the least recently used are evicted once the cache is over its size budget
+class CachingStorage implements Storage {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char VERSION_SEPARATOR = '@';
+
+    private final Storage upstream;
+    private final Storage cache;
+    private final long budget;
+
+    // Cached files in least recently used order (guarded by itself)
+    // used includes space reserved by fetches still in progress
+    private final LinkedHashMap<String, CachedFile> cached = new LinkedHashMap<>(16, 0.75f, true);
+    private long used = 0;
+
+    // The result of each thread's last stat, used up by the openRead that follows it
+    // A download stats a file, sends its size and then opens it, so reusing the answer saves a round trip
+    // and guarantees the file opened is the version whose size the client was given
+    private final ThreadLocal<StoredFile> lastStat = new ThreadLocal<>();
+
+    CachingStorage(Storage upstream, Storage cache, long budget) throws IOException {
+        this.upstream = upstream;
+        this.cache = cache;
+        this.budget = budget;
+
+        // Pick up what was cached before a restart, keeping only the newest copy of each file
+        for (StoredFile file : cache.list()) {
+            int separator = file.getName().lastIndexOf(VERSION_SEPARATOR);
+            if (separator < 0) {
+                continue;
+            }
+
+            String name = file.getName().substring(0, separator);
+            long modified;
+            try {
+                modified = Long.parseLong(file.getName().substring(separator + 1));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            CachedFile existing = cached.get(name);
+            if (existing != null && existing.modified >= modified) {
+                cache.delete(file.getName());
+                continue;
+            }
+            if (existing != null) {
+                cache.delete(existing.cacheName(name));
+                used -= existing.size;
+            }
+
+            cached.put(name, new CachedFile(modified, file.getSize()));
+            used += file.getSize();
+        }
+
+        synchronized (cached) {
+            evict(0);
+        }
+        System.out.println("Cache holds " + cached.size() + " files (" + used / (1024 * 1024) + "MB of " + budget / (1024 * 1024) + "MB)");
+    }
+
+    // Falls back to the cached copy if the upstream server can't be reached
+    @Override public StoredFile stat(String name) throws IOException {
+        StoredFile file;
+        try {
+            file = upstream.stat(name);
+        } catch (IOException e) {
+            CachedFile cachedFile = getCached(name);
+            if (cachedFile == null) {
+                lastStat.remove();
+                throw e;
+            }
+
+            System.out.println("Upstream unavailable, using cached copy of " + name + ": " + e.getMessage());
+            file = new StoredFile(name, cachedFile.size, cachedFile.modified);
+        }
+
+        lastStat.set(file);
+        return file;
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        StoredFile current = lastStat.get();
+        lastStat.remove();
+        if (current != null && current.getName().equals(name)) {
+            return openCurrent(name, current, offset, length);
+        }
+
+        try {
+            current = upstream.stat(name);
+        } catch (IOException e) {
+            // Serve a possibly stale copy rather than nothing
+            CachedFile file = getCached(name);
+            if (file == null) {
+                throw e;
+            }
+
+            System.out.println("Upstream unavailable, serving cached copy of " + name + ": " + e.getMessage());
+            return cache.openRead(file.cacheName(name), offset, length);
+        }
+
+        if (current == null) {
+            invalidate(name);
+            throw new NoSuchFileException(name);
+        }
+        return openCurrent(name, current, offset, length);
+    }
+
+    // Opens the given version of a file, from the cache if it's there or fetching it if not
+    private ReadableByteChannel openCurrent(String name, StoredFile current, long offset, long length) throws IOException {
+        CachedFile file = getCached(name);
+        if (file != null && file.modified == current.getModified() && file.size == current.getSize()) {
+            return cache.openRead(file.cacheName(name), offset, length);
+        }
+
+        // Out of date or not cached, files that could never fit are passed straight through
+        invalidate(name);
+        if (current.getSize() > budget) {
+            return upstream.openRead(name, offset, length);
+        }
+
+        file = fetch(name, current);
+        try {
+            return cache.openRead(file.cacheName(name), offset, length);
+        } catch (NoSuchFileException e) {
+            // Already evicted again by other fetches
+            return upstream.openRead(name, offset, length);
+        }
+    }
+
+    // The cached copy is only dropped once the upload has been committed upstream
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        PendingWrite write = upstream.openWrite(name, size);
+        return new PendingWrite() {
+            @Override public int write(ByteBuffer src) throws IOException {
+                return write.write(src);
+            }
+
+            @Override public void commit() throws IOException {
+                write.commit();
+                invalidate(name);
+            }
+
+            @Override public boolean isOpen() {
+                return write.isOpen();
+            }
+
+            @Override public void close() throws IOException {
+                write.close();
+            }
+        };
+    }
+
+    @Override public List<StoredFile> list() throws IOException {
+        return upstream.list();
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        boolean deleted = upstream.delete(name);
+        invalidate(name);
+        return deleted;
+    }
+
+    // Copies the current version of a file from upstream into the cache
+    private CachedFile fetch(String name, StoredFile current) throws IOException {
+        CachedFile file = new CachedFile(current.getModified(), current.getSize());
+        synchronized (cached) {
+            evict(file.size);
+            used += file.size;
+        }
+
+        boolean stored = false;
+        try (ReadableByteChannel in = upstream.openRead(name, 0, file.size);
+             PendingWrite out = cache.openWrite(file.cacheName(name), file.size)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+            }
+
+            out.commit();
+            stored = true;
+        } finally {
+            synchronized (cached) {
+                if (!stored) {
+                    used -= file.size;
+                } else {
+                    // Another connection may have fetched the same file in the meantime
+                    CachedFile replaced = cached.put(name, file);
+                    if (replaced != null) {
+                        used -= replaced.size;
+                        if (replaced.modified != file.modified) {
+                            cache.delete(replaced.cacheName(name));
+                        }
+                    }
+                }
+            }
+        }
+
+        System.out.println("Cached " + name + " (" + file.size + " bytes)");
+        return file;
+    }
+
+    private CachedFile getCached(String name) {
+        synchronized (cached) {
+            return cached.get(name);
+        }
+    }
+
+    private void invalidate(String name) throws IOException {
+        synchronized (cached) {
+            CachedFile file = cached.remove(name);
+            if (file != null) {
+                used -= file.size;
+                cache.delete(file.cacheName(name));
+            }
+        }
+    }
+
+    // Drops the least recently used files until there is room for needed more bytes
+    // Must hold the lock on cached
+    private void evict(long needed) throws IOException {
+        Iterator<Map.Entry<String, CachedFile>> it = cached.entrySet().iterator();
+        int evicted = 0;
+        while (used + needed > budget && it.hasNext()) {
+            Map.Entry<String, CachedFile> entry = it.next();
+            it.remove();
+            used -= entry.getValue().size;
+            cache.delete(entry.getValue().cacheName(entry.getKey()));
+            evicted++;
+        }
+
+        if (evicted > 0) {
+            System.out.println("Evicted " + evicted + " files from the cache");
+        }
+    }
+
+    private static class CachedFile {
+        final long modified;
+        final long size;
+
+        CachedFile(long modified, long size) {
+            this.modified = modified;
+            this.size = size;
+        }
+
+        String cacheName(String name) {
+            return name + VERSION_SEPARATOR + modified;
+        }
+    }
+}
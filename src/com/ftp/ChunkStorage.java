@@ -0,0 +1,447 @@
+package com.ftp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Stores files as content-defined chunks so that data shared between files is only kept once
+//
+// Uploads are split wherever a rolling hash of the last 64 bytes hits a boundary pattern, so an insert
+// or edit only changes the chunks around it. Each unique chunk is stored once under its SHA-256 in
+// chunks/, and each file is a recipe in recipes/ listing the chunks to concatenate. Both are written
+// to tmp/ first and moved into place, so neither directory ever holds a partly written file.
+//
+// Chunks are reference counted. Every recipe holds a reference to each of its chunks, as do uploads
+// in progress and open reads, so a DELF can never remove a chunk that something is still using.
+class ChunkStorage implements Storage {
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final int MAX_CHUNK = 256 * 1024;
+
+    // Boundaries are where the top 16 bits of the rolling hash are zero, giving ~64KB chunks on average
+    private static final long BOUNDARY_MASK = 0xFFFF000000000000L;
+
+    // Random values for the gear hash, seeded so chunk boundaries are the same on every run
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x5EEDL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final Path chunkDir;
+    private final Path recipeDir;
+    private final Path tempDir;
+    private final PathResolver chunkPaths;
+    private final PathResolver recipePaths;
+    private final ConcurrentHashMap<String, Recipe> recipes = new ConcurrentHashMap<>();
+
+    // Number of references to each chunk, a chunk is deleted when its count reaches zero (guarded by this)
+    private final Map<String, Integer> refs = new HashMap<>();
+
+    ChunkStorage(String dir) throws IOException {
+        Path root = Paths.get(dir);
+        chunkDir = root.resolve("chunks");
+        recipeDir = root.resolve("recipes");
+        tempDir = root.resolve("tmp");
+        Files.createDirectories(chunkDir);
+        Files.createDirectories(recipeDir);
+        Files.createDirectories(tempDir);
+        chunkPaths = new PathResolver(chunkDir);
+        recipePaths = new PathResolver(recipeDir);
+
+        clearTempDir();
+        loadRecipes();
+        removeOrphanedChunks();
+    }
+
+    @Override public StoredFile stat(String name) {
+        Recipe recipe = recipes.get(name);
+        return recipe == null ? null : new StoredFile(name, recipe.size, recipe.modified);
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        Recipe recipe;
+        synchronized (this) {
+            recipe = recipes.get(name);
+            if (recipe == null) {
+                throw new NoSuchFileException(name);
+            }
+            pin(recipe.hashes);
+        }
+
+        return new ChunkedRead(recipe, offset, length);
+    }
+
+    @Override public PendingWrite openWrite(String name, long size) {
+        return new ChunkedWrite(name, size);
+    }
+
+    @Override public List<StoredFile> list() {
+        List<StoredFile> files = new ArrayList<>();
+        for (Map.Entry<String, Recipe> entry : recipes.entrySet()) {
+            files.add(new StoredFile(entry.getKey(), entry.getValue().size, entry.getValue().modified));
+        }
+        return files;
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        synchronized (this) {
+            Recipe recipe = recipes.remove(name);
+            if (recipe == null) {
+                return false;
+            }
+
+            Files.deleteIfExists(recipePaths.resolve(name));
+            unpin(recipe.hashes);
+        }
+
+        return true;
+    }
+
+    // Adds a reference to each chunk (must hold the lock)
+    private void pin(List<String> hashes) {
+        for (String hash : hashes) {
+            refs.merge(hash, 1, Integer::sum);
+        }
+    }
+
+    // Removes a reference from each chunk, deleting chunks nothing refers to any more
+    private synchronized void unpin(List<String> hashes) throws IOException {
+        for (String hash : hashes) {
+            int count = refs.merge(hash, -1, Integer::sum);
+            if (count <= 0) {
+                refs.remove(hash);
+                Files.deleteIfExists(chunkPath(hash));
+            }
+        }
+    }
+
+    // Stores a chunk unless it's already stored, and takes a reference to it either way
+    // Returns the chunk's hash
+    private String storeChunk(byte[] data, int length) throws IOException {
+        MessageDigest digest = ManifestEntry.newDigest();
+        digest.update(data, 0, length);
+        String hash = ManifestEntry.toHex(digest.digest());
+
+        // The common case for repetitive data, no disk I/O at all
+        synchronized (this) {
+            if (refs.containsKey(hash)) {
+                pin(Collections.singletonList(hash));
+                return hash;
+            }
+        }
+
+        // Write outside the lock so uploads don't queue behind each other's disk writes
+        Path path = chunkPath(hash);
+        chunkPaths.createParent(path);
+        Path temp = newTempFile();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        // Someone else may have stored the same chunk while we were writing
+        synchronized (this) {
+            if (refs.containsKey(hash)) {
+                Files.delete(temp);
+            } else {
+                moveIntoPlace(temp, path, chunkPaths);
+            }
+            pin(Collections.singletonList(hash));
+        }
+
+        return hash;
+    }
+
+    // Chunks are spread over 256 directories by the first byte of their hash
+    private Path chunkPath(String hash) {
+        return chunkDir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    // Creates an empty file to write before moving it into chunks/ or recipes/
+    private Path newTempFile() throws IOException {
+        Path temp = tempDir.resolve(UUID.randomUUID().toString());
+        try {
+            return Files.createFile(temp);
+        } catch (NoSuchFileException e) {
+            // tmp/ was removed behind the server's back
+            Files.createDirectories(tempDir);
+            return Files.createFile(temp);
+        }
+    }
+
+    // Moves a finished file into place, the directories it goes in are remembered by paths so they
+    // aren't created every time, but if one has been removed since it's forgotten and created again
+    private static void moveIntoPlace(Path temp, Path path, PathResolver paths) throws IOException {
+        try {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            paths.forgetParent(path);
+            paths.createParent(path);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    // Anything left in tmp/ is from a write that was interrupted when the server stopped
+    private void clearTempDir() throws IOException {
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempDir)) {
+            for (Path path : leftovers) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private void loadRecipes() throws IOException {
+        try (Stream<Path> walk = Files.walk(recipeDir)) {
+            Iterator<Path> it = walk.filter(Files::isRegularFile).iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                String name = recipeDir.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+                Recipe recipe = Recipe.read(path);
+                recipes.put(name, recipe);
+                synchronized (this) {
+                    pin(recipe.hashes);
+                }
+            }
+        }
+    }
+
+    // Chunks from uploads that never completed (eg. the server was killed) are referenced by nothing
+    private void removeOrphanedChunks() throws IOException {
+        try (Stream<Path> walk = Files.walk(chunkDir)) {
+            Iterator<Path> it = walk.filter(Files::isRegularFile).iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                synchronized (this) {
+                    if (!refs.containsKey(path.getFileName().toString())) {
+                        Files.delete(path);
+                    }
+                }
+            }
+        }
+    }
+
+    // Splits incoming data into chunks as it arrives, the recipe is only saved on commit
+    private class ChunkedWrite implements PendingWrite {
+        private final String name;
+        private final long size;
+        private final byte[] chunk = new byte[MAX_CHUNK];
+        private int chunkLength = 0;
+        private long rollingHash = 0;
+        private long written = 0;
+
+        private final List<String> hashes = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private boolean open = true;
+        private boolean committed = false;
+
+        ChunkedWrite(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+
+        @Override public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                byte b = src.get();
+                chunk[chunkLength++] = b;
+                rollingHash = (rollingHash << 1) + GEAR[b & 0xFF];
+
+                if ((chunkLength >= MIN_CHUNK && (rollingHash & BOUNDARY_MASK) == 0) || chunkLength == MAX_CHUNK) {
+                    endChunk();
+                }
+            }
+
+            written += n;
+            return n;
+        }
+
+        private void endChunk() throws IOException {
+            if (chunkLength == 0) {
+                return;
+            }
+
+            hashes.add(storeChunk(chunk, chunkLength));
+            lengths.add(chunkLength);
+            chunkLength = 0;
+            rollingHash = 0;
+        }
+
+        @Override public void commit() throws IOException {
+            if (written != size) {
+                throw new IOException("Expected " + size + " bytes but " + written + " were written");
+            }
+            endChunk();
+
+            Recipe recipe = new Recipe(size, System.currentTimeMillis(), hashes, lengths);
+            Path path = recipePaths.resolve(name);
+            recipePaths.createParent(path);
+            Path temp = newTempFile();
+            recipe.write(temp);
+
+            // Replacing a file gives up the old recipe's references, our chunks are already referenced
+            Recipe old;
+            synchronized (ChunkStorage.this) {
+                moveIntoPlace(temp, path, recipePaths);
+                old = recipes.put(name, recipe);
+                committed = true;
+            }
+            if (old != null) {
+                unpin(old.hashes);
+            }
+            open = false;
+        }
+
+        @Override public boolean isOpen() {
+            return open;
+        }
+
+        @Override public void close() throws IOException {
+            if (open && !committed) {
+                unpin(hashes);
+            }
+            open = false;
+        }
+    }
+
+    // Reads a file back by concatenating its chunks, holding a reference to them until closed
+    private class ChunkedRead implements ReadableByteChannel {
+        private final Recipe recipe;
+        private int index = 0;
+        private long skip;
+        private long remaining;
+        private FileChannel current = null;
+        private boolean open = true;
+
+        ChunkedRead(Recipe recipe, long offset, long length) {
+            this.recipe = recipe;
+            this.remaining = length;
+
+            // Find the chunk containing offset
+            skip = offset;
+            while (index < recipe.lengths.size() && skip >= recipe.lengths.get(index)) {
+                skip -= recipe.lengths.get(index);
+                index++;
+            }
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            while (remaining > 0) {
+                if (current == null) {
+                    if (index >= recipe.hashes.size()) {
+                        break;
+                    }
+                    current = FileChannel.open(chunkPath(recipe.hashes.get(index++)), StandardOpenOption.READ);
+                    current.position(skip);
+                    skip = 0;
+                }
+
+                int limit = dst.limit();
+                if (dst.remaining() > remaining) {
+                    dst.limit(dst.position() + (int) remaining);
+                }
+                int n = current.read(dst);
+                dst.limit(limit);
+
+                if (n < 0) {
+                    current.close();
+                    current = null;
+                    continue;
+                }
+
+                remaining -= n;
+                return n;
+            }
+
+            return -1;
+        }
+
+        @Override public boolean isOpen() {
+            return open;
+        }
+
+        @Override public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            if (current != null) {
+                current.close();
+            }
+            unpin(recipe.hashes);
+        }
+    }
+
+    // The list of chunks making up a file
+    private static class Recipe {
+        final long size;
+        final long modified;
+        final List<String> hashes;
+        final List<Integer> lengths;
+
+        Recipe(long size, long modified, List<String> hashes, List<Integer> lengths) {
+            this.size = size;
+            this.modified = modified;
+            this.hashes = hashes;
+            this.lengths = lengths;
+        }
+
+        void write(Path path) throws IOException {
+            try (OutputStream stream = Files.newOutputStream(path);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+                out.writeLong(size);
+                out.writeLong(modified);
+                out.writeInt(hashes.size());
+                for (int i = 0; i < hashes.size(); i++) {
+                    out.writeUTF(hashes.get(i));
+                    out.writeInt(lengths.get(i));
+                }
+            }
+        }
+
+        static Recipe read(Path path) throws IOException {
+            try (InputStream stream = Files.newInputStream(path);
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(stream))) {
+                long size = in.readLong();
+                long modified = in.readLong();
+                int count = in.readInt();
+                List<String> hashes = new ArrayList<>(count);
+                List<Integer> lengths = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    hashes.add(in.readUTF());
+                    lengths.add(in.readInt());
+                }
+                return new Recipe(size, modified, hashes, lengths);
+            }
+        }
+    }
+}
@@ -1,10 +1,30 @@
 package com.ftp;
 
+import javax.net.ssl.SSLContext;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 class Client {
+    // How many times a request the server was too busy for is retried before giving up
+    private static final int MAX_RETRIES = 5;
+
+    // Transfers are sent and received in chunks of this size so progress can be reported
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    // Set to connect over TLS, null for plaintext
+    static SSLContext TLS = null;
+
     // Connection details
     private Socket socket;
     private DataInputStream in;
@@ -25,6 +45,7 @@ class Client {
             out.writeUTF("DELF");
             out.writeShort(filename.length());
             out.writeChars(filename);
+            out.flush();
 
             // Wait for server response
             int response = in.readInt();
@@ -53,6 +74,7 @@ class Client {
         try {
             // The client sends the users confirm status
             out.writeBoolean(delete);
+            out.flush();
 
             // Either display the servers response, or display the cancellation
             if (delete) {
@@ -70,65 +92,119 @@ class Client {
         return true;
     }
 
-    // Returns an object representing the file downloaded
+    // Downloads a file straight to disk at dest, returning an object representing the file downloaded
     // This object also indicates whether or not errors occurred
-    public DownloadedFile download(String filename) {
+    // The listener may be null if progress isn't needed
+    public DownloadedFile download(String filename, File dest, TransferListener listener) {
         long startTime = System.currentTimeMillis();
 
         // Download bytes from server
-        byte[] bytes;
+        long fileSize;
         try {
-            bytes = downloadFromServer(filename);
+            fileSize = downloadFromServer(filename, dest, listener);
         } catch (IOException e) {
             // Handle errors, errors here should cause a disconnect
             Log.log(e.getMessage());
             return new DownloadedFile(true, null);
         }
 
-        // Gather statistics
-        if (bytes != null) {
-            long endTime = System.currentTimeMillis();
-            double timeTaken = (endTime - startTime);
-            timeTaken /= 1000;
-            Log.log(String.format("%,d bytes transferred in %,.2fs", bytes.length, timeTaken));
+        // If fileSize is -1 then some error has occurred, but it's not fatal
+        if (fileSize < 0) {
+            return new DownloadedFile(false, null);
         }
 
-        // If bytes is null then some error has occurred, but it's not fatal
-        return new DownloadedFile(false, bytes);
+        // Gather statistics
+        long endTime = System.currentTimeMillis();
+        double timeTaken = (endTime - startTime);
+        timeTaken /= 1000;
+        Log.log(String.format("%,d bytes transferred in %,.2fs", fileSize, timeTaken));
+        Log.log("File saved to disk");
+
+        return new DownloadedFile(false, dest);
     }
 
-    private byte[] downloadFromServer(String filename) throws IOException {
-        // Send operation and filename
-        Log.log("Sending DWLD operation to server");
-        out.writeUTF("DWLD");
-        out.writeShort(filename.length());
-        out.writeChars(filename);
+    // Returns the number of bytes downloaded, or -1 if the download didn't go ahead
+    private long downloadFromServer(String filename, File dest, TransferListener listener) throws IOException {
+        int fileSize;
+        for (int attempt = 0; ; attempt++) {
+            // Send operation and filename
+            Log.log("Sending DWLD operation to server");
+            out.writeUTF("DWLD");
+            out.writeShort(filename.length());
+            out.writeChars(filename);
+            out.flush();
+
+            // -2 means the server is busy and is followed by how long to wait
+            fileSize = in.readInt();
+            if (fileSize != -2) {
+                break;
+            }
+
+            int retryAfter = in.readInt();
+            if (attempt >= MAX_RETRIES) {
+                Log.log("Server too busy. Download cancelled");
+                return -1;
+            }
+            backoff(attempt, retryAfter);
+        }
 
         // Read server response, handle weird values (out of spec)
-        int fileSize = in.readInt();
         if (fileSize == -1) {
             Log.log("File does not exist on server");
-            return null;
+            return -1;
         } else if (fileSize < 0) {
             Log.log("Negative integer returned for filesize that was not -1. Download cancelled");
-            return null;
+            return -1;
+        }
+
+        // Data goes to a temporary file next to the destination, which is renamed once complete
+        // If it can't be created then tell the server we aren't ready, which keeps the connection usable
+        File temp;
+        FileOutputStream stream;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            dest.getAbsoluteFile().getParentFile().mkdirs();
+            temp = File.createTempFile("." + dest.getName() + ".", ".part", dest.getAbsoluteFile().getParentFile());
+            stream = new FileOutputStream(temp);
+        } catch (IOException e) {
+            Log.log("Error creating file on disk (" + e.getMessage() + ")");
+            out.writeBoolean(false);
+            out.flush();
+            return -1;
         }
 
         // Confirm readiness to download
         out.writeBoolean(true);
+        out.flush();
         Log.log("Downloading from server");
 
-        // Declare our array of bytes
-        byte[] bytes = new byte[fileSize];
-        int totBytesRead = 0;
+        boolean complete = false;
+        try {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int totBytesRead = 0;
+
+            // Write each chunk out as it arrives so memory use doesn't depend on the file size
+            try (FileOutputStream fos = stream) {
+                while (totBytesRead < fileSize) {
+                    int bytesRead = in.read(buffer, 0, Math.min(CHUNK_SIZE, fileSize - totBytesRead));
+                    if (bytesRead < 0) {
+                        throw new EOFException("Server closed the connection after " + totBytesRead + " bytes");
+                    }
+                    fos.write(buffer, 0, bytesRead);
+                    totBytesRead += bytesRead;
+                    report(listener, totBytesRead, fileSize);
+                }
+            }
 
-        // Read as many bytes as possible until buffer is full
-        while (totBytesRead < fileSize) {
-            int bytesRead = in.read(bytes, totBytesRead, fileSize - totBytesRead);
-            totBytesRead += bytesRead;
+            Files.move(temp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            complete = true;
+            return totBytesRead;
+        } finally {
+            if (!complete) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
         }
-
-        return bytes;
     }
 
     // Returns true if everything went well without any server/socket errors
@@ -156,10 +232,23 @@ class Client {
         return true;
     }
 
+    // Returns the listings without displaying them, or null if a server/socket error occurred
+    public String[] getListings() {
+        try {
+            String[] listings = retrieveListings();
+            return listings != null ? listings : new String[0];
+        } catch (IOException e) {
+            // Handle errors
+            Log.log(e.getMessage());
+            return null;
+        }
+    }
+
     private String[] retrieveListings() throws IOException {
         // Send operation
         Log.log("Retrieving listings");
         out.writeUTF("LIST");
+        out.flush();
 
         // Number of listings to retrieve
         int numListings = in.readInt();
@@ -177,6 +266,46 @@ class Client {
         return listings;
     }
 
+    // Returns the server's manifest of every file, or null if a server/socket error occurred
+    public List<ManifestEntry> getManifest() {
+        try {
+            int numEntries;
+            for (int attempt = 0; ; attempt++) {
+                Log.log("Retrieving manifest");
+                out.writeUTF("SYNC");
+                out.flush();
+
+                // -2 means the server is still building its manifest and is followed by how long to wait
+                numEntries = in.readInt();
+                if (numEntries != -2) {
+                    break;
+                }
+
+                int retryAfter = in.readInt();
+                if (attempt >= MAX_RETRIES) {
+                    Log.log("Server manifest not ready. Sync cancelled");
+                    return null;
+                }
+                backoff(attempt, retryAfter);
+            }
+
+            if (numEntries < 0) {
+                Log.log("Negative manifest size returned (" + numEntries + ")");
+                return null;
+            }
+            List<ManifestEntry> entries = new ArrayList<>(numEntries);
+            for (int i = 0; i < numEntries; i++) {
+                entries.add(ManifestEntry.read(in));
+            }
+
+            return entries;
+        } catch (IOException e) {
+            // Handle errors
+            Log.log(e.getMessage());
+            return null;
+        }
+    }
+
     // Attempts to quit gracefully using operations
     public void quit() {
         try {
@@ -197,73 +326,159 @@ class Client {
         Log.log("Session closed");
     }
 
-    // Returns false if there is a SERVER error
-    // Client errors (eg. IOException on file read, will still return true)
-    public boolean upload(File file, String filename)  {
-        // Read the file as bytes from disk first
-        Log.log("Reading file from disk");
-        byte[] bytes;
+    // Returns an object indicating whether the file was uploaded and whether a SERVER error occurred
+    // Client errors (eg. IOException on file read) are not socket errors
+    // The listener may be null if progress isn't needed
+    public UploadResult upload(File file, String filename, TransferListener listener)  {
+        // Open the file, its contents are streamed from disk as they're sent rather than read up front
+        FileChannel channel;
+        long fileSize;
         try {
-            bytes = Files.readAllBytes(file.toPath());
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileSize = channel.size();
         } catch (IOException e) {
             // Handle errors. Errors reading file are not fatal to the server-client connection
             Log.log(e.getMessage());
             e.printStackTrace();
-            return true;
+            return new UploadResult(false, false);
         }
 
         // Send the file to the server
-        try {
-            uploadFile(filename, bytes);
+        try (FileChannel fc = channel) {
+            // The protocol sends the file size as a 32 bit integer
+            if (fileSize > Integer.MAX_VALUE) {
+                Log.log("File is too large to upload (" + fileSize + " bytes)");
+                return new UploadResult(false, false);
+            }
+
+            return new UploadResult(false, uploadFile(filename, fc, (int) fileSize, listener));
         } catch (IOException e) {
             // Handle errors
             Log.log(e.getMessage());
             e.printStackTrace();
-            return false;
+            return new UploadResult(true, false);
         }
-
-        return true;
     }
 
     // The code that performs the upload (wrapped in upload to handle errors)
-    private void uploadFile(String filename, byte[] bytes) throws IOException {
-        // Send operation, filename, and length of file
-        Log.log("Sending UPLD operation to server and waiting for response");
-        out.writeUTF("UPLD");
-        out.writeShort(filename.length());
-        out.writeChars(filename);
-        out.writeInt(bytes.length);
-
-        // Get server confirmation
-        if (!in.readBoolean()) {
+    // Returns false if the server rejected the upload
+    private boolean uploadFile(String filename, FileChannel channel, int fileSize, TransferListener listener) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            // Send operation, filename, and length of file
+            Log.log("Sending UPLD operation to server and waiting for response");
+            out.writeUTF("UPLD");
+            out.writeShort(filename.length());
+            out.writeChars(filename);
+            out.writeInt(fileSize);
+            out.flush();
+
+            // Get server confirmation
+            if (in.readBoolean()) {
+                break;
+            }
+
+            // A rejection carries a reason and how long to wait before retrying (0 if retrying won't help)
             String reason = in.readUTF();
+            int retryAfter = in.readInt();
             Log.log("Server rejected request");
             Log.log("Reason: " + reason);
-            return;
+            if (retryAfter <= 0 || attempt >= MAX_RETRIES) {
+                return false;
+            }
+            backoff(attempt, retryAfter);
         }
 
         // Send file
+        // Going channel to channel lets the OS copy from disk to the socket directly where it can
         Log.log("Sending data to server");
-        out.write(bytes);
+        WritableByteChannel target = Tls.rawChannel(socket) != null ? Tls.rawChannel(socket) : Channels.newChannel(out);
+        long sent = 0;
+        while (sent < fileSize) {
+            long len = channel.transferTo(sent, Math.min(CHUNK_SIZE, fileSize - sent), target);
+            if (len <= 0 && sent >= channel.size()) {
+                throw new EOFException("File shrank while it was being uploaded");
+            }
+            sent += len;
+            report(listener, sent, fileSize);
+        }
+        out.flush();
         Log.log(in.readUTF());
+        return true;
+    }
+
+    // Passes progress on to the listener, if there is one
+    // A cancelled transfer can't be resumed part way through, so it's treated as a broken connection
+    private static void report(TransferListener listener, long transferred, long total) throws IOException {
+        if (listener == null) {
+            return;
+        }
+
+        if (listener.isCancelled()) {
+            throw new IOException("Transfer cancelled");
+        }
+        listener.update(transferred, total);
     }
 
 
+    // Waits before retrying a request the server was too busy for
+    // The wait grows with each attempt and is randomised so rejected clients don't all come back at once
+    private static void backoff(int attempt, int retryAfter) {
+        long spread = (long) retryAfter << Math.min(attempt, 6);
+        long delay = retryAfter + ThreadLocalRandom.current().nextLong(spread + 1);
+        Log.log("Retrying in " + delay + "ms");
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // Factory method to create a client instance
     public static Client connect(String ip, int port, int timeout) {
-        try {
-            Log.log("Connecting to server");
-            Socket socket = new Socket(ip, port);
-            socket.setSoTimeout(timeout);
-            DataInputStream in = new DataInputStream(socket.getInputStream());
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            Log.log("Connected");
-
-            return new Client(socket, in, out);
-        } catch (IOException e) {
-            // Handle errors
-            Log.log(e.getMessage());
-            return null;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                Log.log("Connecting to server");
+                // Opened through a channel so uploads can be sent straight from the file with transferTo
+                // The timeout applies to connecting as well as to every read after
+                Socket socket;
+                if (TLS != null) {
+                    socket = Tls.connect(TLS, ip, port, timeout);
+                } else {
+                    socket = SocketChannel.open().socket();
+                    try {
+                        socket.connect(new InetSocketAddress(ip, port), timeout);
+                    } catch (IOException e) {
+                        socket.close();
+                        throw e;
+                    }
+                }
+                socket.setSoTimeout(timeout);
+                OutputStream socketOut = Tls.output(socket);
+                DataInputStream in = new DataInputStream(Tls.input(socket, socketOut));
+                DataOutputStream out = new DataOutputStream(socketOut);
+
+                // The server greets with true, or false followed by a reason and retry delay if it's at capacity
+                if (in.readBoolean()) {
+                    Log.log("Connected");
+                    return new Client(socket, in, out);
+                }
+
+                String reason = in.readUTF();
+                int retryAfter = in.readInt();
+                socket.close();
+                Log.log(reason);
+
+                if (attempt >= MAX_RETRIES) {
+                    Log.log("Server too busy. Giving up");
+                    return null;
+                }
+                backoff(attempt, retryAfter);
+            } catch (IOException e) {
+                // Handle errors
+                Log.log(e.getMessage());
+                return null;
+            }
         }
     }
 }
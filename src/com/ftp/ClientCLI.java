@@ -0,0 +1,423 @@
+package com.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Command line client for scripted bulk transfers, eg. from cron jobs or CI
+//
+// Usage: ClientCLI <ip> <port> put <local dir> [remote dir] [options]
+//        ClientCLI <ip> <port> get <remote dir> <local dir> [options]
+//        ClientCLI <ip> <port> sync <remote dir> <local dir> [options]
+// Options: --workers=N --timeout=ms --include=glob --exclude=glob (include/exclude may be repeated)
+//          --delete (sync only, removes local files that no longer exist on the server)
+//          --tls (connect over TLS) --tls-truststore=file --tls-password=password (certificates to trust instead of the default CAs)
+public class ClientCLI {
+    // Constants
+    private final static int DEFAULT_WORKERS = 4;
+    private final static int DEFAULT_TIMEOUT = 5000;
+
+    // Exit codes
+    private final static int EXIT_OK = 0;
+    private final static int EXIT_TRANSFER_FAILED = 1;
+    private final static int EXIT_USAGE = 2;
+    private final static int EXIT_CONNECTION_FAILED = 3;
+    private final static int EXIT_LOCAL_ERROR = 4;
+
+    private final Session session;
+    private final int workers;
+    private boolean delete = false;
+    private final List<PathMatcher> includes = new ArrayList<>();
+    private final List<PathMatcher> excludes = new ArrayList<>();
+
+    private ClientCLI(Session session, int workers) {
+        this.session = session;
+        this.workers = workers;
+    }
+
+    // Uploads every matching file under localDir, keeping its path relative to localDir
+    // Returns the number of files that failed
+    private int put(File localDir, String remoteDir) throws IOException {
+        Path root = localDir.toPath();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile)
+                    .filter(path -> matches(root.relativize(path)))
+                    .collect(Collectors.toList());
+        }
+
+        Log.log("Uploading " + files.size() + " files");
+        List<Runnable> jobs = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (Path path : files) {
+            String remoteName = joinRemote(remoteDir, root.relativize(path));
+            jobs.add(() -> {
+                UploadResult result = session.execute(client -> client.upload(path.toFile(), remoteName, null), UploadResult::hadSocketError);
+                if (result == null || !result.isUploaded()) {
+                    Log.log("FAILED: " + remoteName);
+                    failed.incrementAndGet();
+                }
+            });
+        }
+
+        runAll(jobs);
+        return failed.get();
+    }
+
+    // Downloads every matching file under remoteDir into localDir, keeping its path relative to remoteDir
+    // Returns the number of files that failed, or -1 if the listings couldn't be retrieved
+    private int get(String remoteDir, File localDir) {
+        String[] listings = session.execute(Client::getListings, l -> false);
+        if (listings == null) {
+            return -1;
+        }
+
+        String prefix = remoteDir.isEmpty() ? "" : remoteDir + "/";
+        List<Runnable> jobs = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (String listing : listings) {
+            String name = listing.replace(File.separatorChar, '/');
+            if (!name.startsWith(prefix) || !matches(Paths.get(name.substring(prefix.length())))) {
+                continue;
+            }
+
+            String relative = safeLocalName(name.substring(prefix.length()));
+            if (relative == null) {
+                Log.log("FAILED: " + name + " (unsafe name)");
+                failed.incrementAndGet();
+                continue;
+            }
+
+            File dest = new File(localDir, relative);
+            jobs.add(() -> {
+                DownloadedFile result = session.execute(client -> client.download(name, dest, null), DownloadedFile::hadSocketError);
+                if (result == null || !result.isSaved()) {
+                    Log.log("FAILED: " + name);
+                    failed.incrementAndGet();
+                }
+            });
+        }
+
+        Log.log("Downloading " + jobs.size() + " files");
+        runAll(jobs);
+        return failed.get();
+    }
+
+    // Makes localDir mirror remoteDir using the server's manifest
+    // Only files that are missing or differ are downloaded, and with --delete local files gone from the server are removed
+    // Returns the number of files that failed, or -1 if the manifest couldn't be retrieved
+    private int sync(String remoteDir, File localDir) throws IOException {
+        List<ManifestEntry> manifest = session.execute(Client::getManifest, m -> false);
+        if (manifest == null) {
+            return -1;
+        }
+
+        // Work out which remote files we want, keyed by their path relative to the directories
+        String prefix = remoteDir.isEmpty() ? "" : remoteDir + "/";
+        Map<String, ManifestEntry> wanted = new HashMap<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (ManifestEntry entry : manifest) {
+            String name = entry.getPath().replace(File.separatorChar, '/');
+            if (!name.startsWith(prefix) || !matches(Paths.get(name.substring(prefix.length())))) {
+                continue;
+            }
+
+            String relative = safeLocalName(name.substring(prefix.length()));
+            if (relative == null) {
+                Log.log("FAILED: " + name + " (unsafe name)");
+                failed.incrementAndGet();
+                continue;
+            }
+            wanted.put(relative, entry);
+        }
+
+        List<Runnable> jobs = new ArrayList<>();
+        for (Map.Entry<String, ManifestEntry> item : wanted.entrySet()) {
+            ManifestEntry entry = item.getValue();
+            File dest = new File(localDir, item.getKey());
+            if (isUpToDate(dest, entry)) {
+                continue;
+            }
+
+            jobs.add(() -> {
+                DownloadedFile result = session.execute(client -> client.download(entry.getPath(), dest, null), DownloadedFile::hadSocketError);
+                if (result == null || !result.isSaved()) {
+                    Log.log("FAILED: " + entry.getPath());
+                    failed.incrementAndGet();
+                } else {
+                    // Matching the server's timestamp lets the next sync skip hashing this file
+                    //noinspection ResultOfMethodCallIgnored
+                    dest.setLastModified(entry.getModified());
+                }
+            });
+        }
+
+        Log.log(wanted.size() + " files on server, " + jobs.size() + " to download");
+        runAll(jobs);
+
+        if (delete && localDir.isDirectory()) {
+            Path root = localDir.toPath();
+            List<Path> extra;
+            try (Stream<Path> walk = Files.walk(root)) {
+                extra = walk.filter(Files::isRegularFile)
+                        .filter(path -> matches(root.relativize(path)))
+                        .filter(path -> !wanted.containsKey(joinRemote("", root.relativize(path))))
+                        .collect(Collectors.toList());
+            }
+
+            for (Path path : extra) {
+                Log.log("Deleting " + path);
+                Files.delete(path);
+            }
+        }
+
+        return failed.get();
+    }
+
+    // Names come from the server, so one like "../x" or "/x" must not be allowed to write outside the local directory
+    // The server's own rules are used, returns the normalised name or null if it isn't safe
+    private static String safeLocalName(String relative) {
+        return PathResolver.normalise(relative);
+    }
+
+    // A local file is up to date if its size matches and either its timestamp or its hash does
+    private static boolean isUpToDate(File file, ManifestEntry entry) throws IOException {
+        if (!file.isFile() || file.length() != entry.getSize()) {
+            return false;
+        }
+
+        return file.lastModified() == entry.getModified() || ManifestEntry.hash(file).equals(entry.getHash());
+    }
+
+    // Runs the jobs on the worker threads and waits for them all to finish
+    private void runAll(List<Runnable> jobs) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> futures = new ArrayList<>();
+        for (Runnable job : jobs) {
+            futures.add(pool.submit(job));
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                Log.log("Worker error: " + e.getMessage());
+            }
+        }
+        pool.shutdown();
+    }
+
+    // A path matches if it matches any include (or there are none) and no excludes
+    private boolean matches(Path relative) {
+        for (PathMatcher exclude : excludes) {
+            if (exclude.matches(relative)) {
+                return false;
+            }
+        }
+
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (PathMatcher include : includes) {
+            if (include.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Server filenames always use forward slashes
+    private static String joinRemote(String remoteDir, Path relative) {
+        List<String> parts = new ArrayList<>();
+        for (Path part : relative) {
+            parts.add(part.toString());
+        }
+
+        String name = String.join("/", parts);
+        return remoteDir.isEmpty() ? name : remoteDir + "/" + name;
+    }
+
+    // Strips leading/trailing slashes so "" means the server's base directory
+    private static String normaliseRemoteDir(String dir) {
+        String result = dir.replace('\\', '/');
+        while (result.startsWith("/")) {
+            result = result.substring(1);
+        }
+        while (result.endsWith("/")) {
+            result = result.substring(0, result.length() - 1);
+        }
+        return result.equals(".") ? "" : result;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: ClientCLI <ip> <port> put <local dir> [remote dir] [options]");
+        System.out.println("       ClientCLI <ip> <port> get <remote dir> <local dir> [options]");
+        System.out.println("       ClientCLI <ip> <port> sync <remote dir> <local dir> [options]");
+        System.out.println("Options: --workers=N --timeout=ms --include=glob --exclude=glob --delete");
+        System.out.println("         --tls --tls-truststore=file --tls-password=password");
+        System.exit(EXIT_USAGE);
+    }
+
+    public static void main(String[] args) {
+        // Split arguments into positional ones and --name=value options
+        List<String> positional = new ArrayList<>();
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            (arg.startsWith("--") ? options : positional).add(arg);
+        }
+
+        if (positional.size() < 4) {
+            usage();
+        }
+
+        String ip = positional.get(0);
+        String mode = positional.get(2);
+        int port = parsePositiveInteger(positional.get(1), "Port number must be a positive integer");
+        int workers = DEFAULT_WORKERS;
+        int timeout = DEFAULT_TIMEOUT;
+        List<String> includes = new ArrayList<>();
+        List<String> excludes = new ArrayList<>();
+        boolean delete = false;
+        boolean tls = false;
+        String trustStore = null;
+        String tlsPassword = "";
+
+        for (String option : options) {
+            int eq = option.indexOf('=');
+            String name = eq < 0 ? option : option.substring(0, eq);
+            String value = eq < 0 ? "" : option.substring(eq + 1);
+
+            switch (name) {
+                case "--workers":
+                    workers = parsePositiveInteger(value, "Workers must be a positive integer");
+                    break;
+                case "--timeout":
+                    timeout = parsePositiveInteger(value, "Timeout must be a positive integer (ms)");
+                    break;
+                case "--include":
+                    includes.add(value);
+                    break;
+                case "--exclude":
+                    excludes.add(value);
+                    break;
+                case "--delete":
+                    delete = true;
+                    break;
+                case "--tls":
+                    tls = true;
+                    break;
+                case "--tls-truststore":
+                    tls = true;
+                    trustStore = value;
+                    break;
+                case "--tls-password":
+                    tlsPassword = value;
+                    break;
+                default:
+                    System.out.println("Unknown option: " + option);
+                    usage();
+            }
+        }
+
+        // Resolve directories before connecting so usage errors don't need a server
+        File localDir;
+        String remoteDir;
+        if (mode.equals("put")) {
+            localDir = new File(positional.get(3));
+            remoteDir = normaliseRemoteDir(positional.size() > 4 ? positional.get(4) : "");
+            if (!localDir.isDirectory()) {
+                System.out.println("Not a directory: " + localDir);
+                System.exit(EXIT_USAGE);
+            }
+        } else if ((mode.equals("get") || mode.equals("sync")) && positional.size() > 4) {
+            remoteDir = normaliseRemoteDir(positional.get(3));
+            localDir = new File(positional.get(4));
+        } else {
+            usage();
+            return;
+        }
+
+        if (tls) {
+            try {
+                Client.TLS = Tls.clientContext(trustStore, tlsPassword.toCharArray());
+            } catch (GeneralSecurityException | IOException e) {
+                System.out.println("Could not set up TLS (" + e.getMessage() + ")");
+                System.exit(EXIT_LOCAL_ERROR);
+            }
+        }
+
+        // One connection per worker
+        Session session = Session.open(ip, port, timeout, workers);
+        if (session == null) {
+            System.exit(EXIT_CONNECTION_FAILED);
+        }
+
+        ClientCLI cli = new ClientCLI(session, workers);
+        cli.delete = delete;
+        for (String glob : includes) {
+            cli.includes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+        for (String glob : excludes) {
+            cli.excludes.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+
+        int exitCode;
+        try {
+            int failed;
+            if (mode.equals("put")) {
+                failed = cli.put(localDir, remoteDir);
+            } else if (mode.equals("get")) {
+                failed = cli.get(remoteDir, localDir);
+            } else {
+                failed = cli.sync(remoteDir, localDir);
+            }
+            if (failed < 0) {
+                exitCode = EXIT_CONNECTION_FAILED;
+            } else if (failed > 0) {
+                Log.log(failed + " transfers failed");
+                exitCode = EXIT_TRANSFER_FAILED;
+            } else {
+                Log.log("All transfers completed");
+                exitCode = EXIT_OK;
+            }
+        } catch (IOException e) {
+            Log.log("Error reading local directory (" + e.getMessage() + ")");
+            exitCode = EXIT_LOCAL_ERROR;
+        } finally {
+            session.close();
+        }
+
+        System.exit(exitCode);
+    }
+
+    // Exits with a usage error if the value isn't a positive integer
+    private static int parsePositiveInteger(String value, String errMsg) {
+        try {
+            int val = Integer.parseInt(value);
+            if (val > 0) {
+                return val;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error
+        }
+
+        System.out.println(errMsg);
+        System.exit(EXIT_USAGE);
+        return 0;
+    }
+}
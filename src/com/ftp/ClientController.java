@@ -4,21 +4,31 @@ import javafx.application.Platform;
 import javafx.concurrent.Task;
 import javafx.fxml.FXML;
 import javafx.scene.control.*;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.function.UnaryOperator;
 
 public class ClientController {
     private static String DEFAULT_IP = "localhost";
     private static int DEFAULT_PORT = 1234;
     private static int DEFAULT_TIMEOUT = 5000;
+    private static int DEFAULT_CONNECTIONS = 4;
+    // Kept below the number of connections so LIST/DELF don't have to wait for a transfer to finish
+    private static int DEFAULT_TRANSFER_WORKERS = 3;
     public static String BASE_DIR = "client_files/";
 
     // Connection UI
@@ -33,9 +43,11 @@ public class ClientController {
     @FXML private Button dwld;
     @FXML private Button list;
     @FXML private Button upld;
+    @FXML private Button canc;
 
-    // Listview
+    // Listviews
     @FXML private ListView<String> listView;
+    @FXML private ListView<TransferTask<?>> transferView;
 
     // Formatter to restrict inputs to only numbers
     // https://stackoverflow.com/q/40472668
@@ -48,7 +60,8 @@ public class ClientController {
     };
 
     // Connection info
-    private Client conn = null;
+    private Session session = null;
+    private TransferManager transfers = new TransferManager(DEFAULT_TRANSFER_WORKERS);
 
     @FXML
     public void initialize() {
@@ -60,11 +73,14 @@ public class ClientController {
         textTimeout.setText(String.valueOf(DEFAULT_TIMEOUT));
         textTimeout.setTextFormatter(new TextFormatter<String>(integerFilter));
 
-        Log.init(listView);
+        transferView.setItems(transfers.getTransfers());
+        transferView.setCellFactory(view -> new TransferCell());
+
+        Log.init(new ListViewLog(listView));
     }
 
     private void setUIState() {
-        setUIState(conn != null);
+        setUIState(session != null);
     }
 
     private void setUIState(boolean connected) {
@@ -90,6 +106,7 @@ public class ClientController {
         dwld.setDisable(disable);
         list.setDisable(disable);
         upld.setDisable(disable);
+        canc.setDisable(disable);
     }
 
     @FXML
@@ -99,17 +116,18 @@ public class ClientController {
         int port = Integer.parseInt(textPort.getText());
         int timeout = Integer.parseInt(textTimeout.getText());
 
-        Task<Client> task = new Task<Client>() {
-            @Override protected Client call() {
-                return Client.connect(ip, port, timeout);
+        Task<Session> task = new Task<Session>() {
+            @Override protected Session call() {
+                return Session.open(ip, port, timeout, DEFAULT_CONNECTIONS);
             }
         };
 
         task.setOnSucceeded(event -> {
-            conn = task.getValue();
+            session = task.getValue();
             setUIState();
         });
 
+        disableAllUI();
         startTask(task);
     }
 
@@ -121,43 +139,25 @@ public class ClientController {
             return;
         }
 
-        Task<Integer> task1 = new Task<Integer>() {
-            @Override protected Integer call() {
-                return conn.deleteRequest(result.get());
+        Session active = session;
+        // The request and the confirmation have to go over the same connection
+        Task<Boolean> task = new Task<Boolean>() {
+            @Override protected Boolean call() {
+                return active.execute(client -> {
+                    // If response is 0 then a server/socket error occurred
+                    int response = client.deleteRequest(result.get());
+                    if (response != 1) {
+                        return response != 0;
+                    }
+
+                    // If the file exists then prompt user to delete
+                    return client.deleteConfirm(confirmOnUIThread());
+                }, ok -> !ok);
             }
         };
 
-        task1.setOnSucceeded(event -> {
-            // If response is 0 then a server/socket error occurred
-            if (task1.getValue() == 0) {
-                quit();
-                return;
-            } else if (task1.getValue() == -1) {
-                setUIState();
-                return;
-            }
-
-            // If the file exists then prompt user to delete
-            Alert a = new Alert(Alert.AlertType.CONFIRMATION);
-            a.setTitle("Confirm");
-            a.setHeaderText("Delete file?");
-            a.setContentText("Please note the server gives a 60s timeout to receive confirmation");
-            Optional<ButtonType> result2 = a.showAndWait();
-
-            // Create a new task to send the confirmation
-            Task<Boolean> task2 = new Task<Boolean>() {
-                @Override protected Boolean call() {
-                    boolean confirm = result2.isPresent() && result2.get() == ButtonType.OK;
-                    return conn.deleteConfirm(confirm);
-                }
-            };
-
-            // Start the task
-            updateOnTaskEnd(task2);
-            startTask(task2);
-        });
-
-        startTask(task1);
+        updateOnTaskEnd(task);
+        startTask(task);
     }
 
     @FXML
@@ -168,31 +168,33 @@ public class ClientController {
             return;
         }
 
-        Task<DownloadedFile> task = new Task<DownloadedFile>() {
-            @Override protected DownloadedFile call() {
-                return conn.download(result.get());
+        // Choose where to save before the transfer starts so the data can go straight to disk
+        File dest = chooseSaveLocation(result.get());
+        if (dest == null) {
+            return;
+        }
+
+        Session active = session;
+        TransferTask<DownloadedFile> task = new TransferTask<DownloadedFile>("DWLD " + result.get()) {
+            @Override protected DownloadedFile transfer() {
+                return active.execute(client -> client.download(result.get(), dest, this), DownloadedFile::hadSocketError);
             }
         };
 
         task.setOnSucceeded(event -> {
-            DownloadedFile df = task.getValue();
-            if (df.hadSocketError()) {
+            if (task.getValue() == null && session != null) {
                 quit();
-                return;
-            } else if (df.containsData()) {
-                saveFile(result.get(), df.getData());
             }
-
-            setUIState();
         });
-        startTask(task);
+        transfers.submit(task);
     }
 
     @FXML
     private void list() {
+        Session active = session;
         Task<Boolean> task = new Task<Boolean>() {
             @Override protected Boolean call() {
-                return conn.list();
+                return active.execute(Client::list, ok -> !ok);
             }
         };
 
@@ -202,8 +204,9 @@ public class ClientController {
 
     @FXML
     private void quit() {
-        conn.quit();
-        conn = null;
+        transfers.cancelAll();
+        session.close();
+        session = null;
         setUIState(false);
     }
 
@@ -225,57 +228,75 @@ public class ClientController {
             return;
         }
 
-        Task<Boolean> task = new Task<Boolean>() {
-            @Override protected Boolean call() {
-                return conn.upload(file, result.get());
+        Session active = session;
+        TransferTask<UploadResult> task = new TransferTask<UploadResult>("UPLD " + result.get()) {
+            @Override protected UploadResult transfer() {
+                return active.execute(client -> client.upload(file, result.get(), this), UploadResult::hadSocketError);
             }
         };
 
-        updateOnTaskEnd(task);
-        startTask(task);
+        task.setOnSucceeded(event -> {
+            if (task.getValue() == null && session != null) {
+                quit();
+            }
+        });
+        transfers.submit(task);
     }
 
-    private void saveFile(String suggestedName, byte[] data) {
-        // Get file
+    @FXML
+    private void cancel() {
+        TransferTask<?> task = transferView.getSelectionModel().getSelectedItem();
+        if (task == null) {
+            Log.log("Select a transfer to cancel");
+            return;
+        }
+
+        task.cancel();
+    }
+
+    // Asks where a download should be saved, returns null if the user cancels
+    private File chooseSaveLocation(String suggestedName) {
         FileChooser fc = new FileChooser();
         fc.setTitle("Save file");
         fc.setInitialDirectory(new File(BASE_DIR));
         fc.setInitialFileName(new File(suggestedName).getName());
-        File outFile = fc.showSaveDialog(getStage());
-
-        if (outFile == null) {
-            return;
-        }
-
-        // Make directory if it doesn't exist (for some reason)
-        // Write data out
-        //noinspection ResultOfMethodCallIgnored
-        outFile.getParentFile().mkdirs();
-        try (FileOutputStream stream = new FileOutputStream(outFile)) {
-            stream.write(data);
-            Log.log("File saved to disk");
-        } catch (IOException e) {
-            Log.log("Error writing file to disk");
-            Log.log(e.getMessage());
-        }
+        return fc.showSaveDialog(getStage());
     }
 
     private Stage getStage() {
         return (Stage) listView.getScene().getWindow();
     }
 
+    // Asks the user to confirm a deletion from a background task and waits for the answer
+    private boolean confirmOnUIThread() {
+        FutureTask<Boolean> prompt = new FutureTask<>(() -> {
+            Alert a = new Alert(Alert.AlertType.CONFIRMATION);
+            a.setTitle("Confirm");
+            a.setHeaderText("Delete file?");
+            a.setContentText("Please note the server gives a 60s timeout to receive confirmation");
+            Optional<ButtonType> result = a.showAndWait();
+            return result.isPresent() && result.get() == ButtonType.OK;
+        });
+        Platform.runLater(prompt);
+
+        try {
+            return prompt.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return false;
+        }
+    }
+
+    // A failed operation only loses its own connection, but if no connection can be made at all then disconnect
     private void updateOnTaskEnd(Task<Boolean> task) {
         task.setOnSucceeded(event -> {
-            if (!task.getValue()) {
+            if (task.getValue() == null && session != null) {
                 quit();
-            } else {
-                setUIState();
             }
         });
     }
 
-    private void startTask(Task task) {
-        disableAllUI();
+    // Operations run alongside each other on pooled connections, so the UI stays enabled
+    private void startTask(Task<?> task) {
         Thread th = new Thread(task);
         th.setDaemon(true);
         th.start();
@@ -295,40 +316,68 @@ public class ClientController {
     }
 }
 
-class Log {
-    private static ListView<String> list;
+// Shows a transfer's name, progress bar and status in the transfer list
+class TransferCell extends ListCell<TransferTask<?>> {
+    private final Label name = new Label();
+    private final ProgressBar progress = new ProgressBar();
+    private final Label status = new Label();
+    private final HBox box = new HBox(5, name, progress, status);
 
-    public static void init(ListView<String> list) {
-        Log.list = list;
+    TransferCell() {
+        HBox.setHgrow(status, Priority.ALWAYS);
     }
 
-    public static void log(String msg) {
-        System.out.println(msg);
-        Platform.runLater(() -> {
-            list.getItems().add(msg);
-            list.scrollTo(list.getItems().size() - 1);
-        });
+    @Override protected void updateItem(TransferTask<?> task, boolean empty) {
+        super.updateItem(task, empty);
+        progress.progressProperty().unbind();
+        status.textProperty().unbind();
+
+        if (empty || task == null) {
+            setGraphic(null);
+            return;
+        }
+
+        name.setText(task.getTitle());
+        progress.progressProperty().bind(task.progressProperty());
+        status.textProperty().bind(task.messageProperty());
+        setGraphic(box);
     }
 }
 
-class DownloadedFile {
-    private byte[] data;
-    private boolean socketError;
+// Shows log messages in the GUI's status list
+// Messages are batched so a burst of them only costs one UI update
+class ListViewLog implements Consumer<String> {
+    private final ListView<String> list;
 
-    DownloadedFile(boolean socketError, byte[] data) {
-        this.socketError = socketError;
-        this.data = data;
-    }
+    // Messages waiting to be shown
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
 
-    public byte[] getData() {
-        return data;
+    ListViewLog(ListView<String> list) {
+        this.list = list;
     }
 
-    public boolean hadSocketError() {
-        return socketError;
+    @Override public void accept(String msg) {
+        pending.add(msg);
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(this::flush);
+        }
     }
 
-    public boolean containsData() {
-        return data != null;
+    // Runs on the FX thread, adding everything logged since the last flush in one go
+    private void flush() {
+        flushScheduled.set(false);
+
+        List<String> batch = new ArrayList<>();
+        String msg;
+        while ((msg = pending.poll()) != null) {
+            batch.add(msg);
+        }
+
+        if (!batch.isEmpty()) {
+            list.getItems().addAll(batch);
+            list.scrollTo(list.getItems().size() - 1);
+        }
     }
 }
@@ -7,16 +7,18 @@ import javafx.scene.Scene;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
 
 public class ClientGUI extends Application {
     @Override
     public void start(Stage stage) throws Exception {
         Parent root = FXMLLoader.load(getClass().getResource("resources/client.fxml"));
         stage.setTitle("Client");
-        stage.setScene(new Scene(root, 600, 400));
+        stage.setScene(new Scene(root, 600, 500));
         stage.getScene().getStylesheets().add(getClass().getResource("resources/client.css").toExternalForm());
         stage.setMinWidth(400);
-        stage.setMinHeight(300);
+        stage.setMinHeight(400);
         stage.show();
     }
 
@@ -32,6 +34,30 @@ public class ClientGUI extends Application {
             }
         }
 
+        // --tls connects over TLS, --tls-truststore=file and --tls-password=password give certificates to trust instead of the default CAs
+        String trustStore = null;
+        String tlsPassword = "";
+        boolean tls = false;
+        for (String arg : args) {
+            if (arg.equals("--tls")) {
+                tls = true;
+            } else if (arg.startsWith("--tls-truststore=")) {
+                tls = true;
+                trustStore = arg.substring("--tls-truststore=".length());
+            } else if (arg.startsWith("--tls-password=")) {
+                tlsPassword = arg.substring("--tls-password=".length());
+            }
+        }
+
+        if (tls) {
+            try {
+                Client.TLS = Tls.clientContext(trustStore, tlsPassword.toCharArray());
+            } catch (GeneralSecurityException | IOException e) {
+                System.out.println("Could not set up TLS (" + e.getMessage() + ")");
+                return;
+            }
+        }
+
         System.out.println("Launching GUI");
         launch(args);
     }
@@ -0,0 +1,235 @@
+package com.ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+// Files spread across the servers of a cluster by consistent hashing of their names
+// Each node is placed on a ring many times over so files spread evenly, and adding or removing
+// a node only moves the files next to it. A file is kept on the first few distinct nodes clockwise
+// from its name, and any of them can serve it
+class ClusterStorage implements Storage {
+    private static final int VIRTUAL_NODES = 100;
+
+    private final Map<String, Storage> nodes;
+    private final int replicas;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    // nodes maps each node's id (host:port) to its storage, the local node included
+    ClusterStorage(Map<String, Storage> nodes, int replicas) {
+        this.nodes = new LinkedHashMap<>(nodes);
+        this.replicas = Math.max(1, Math.min(replicas, nodes.size()));
+
+        for (String id : nodes.keySet()) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(position(id + "#" + i), id);
+            }
+        }
+    }
+
+    @Override public StoredFile stat(String name) throws IOException {
+        IOException lastError = null;
+        boolean answered = false;
+        for (String id : owners(name)) {
+            try {
+                StoredFile file = nodes.get(id).stat(name);
+                if (file != null) {
+                    return file;
+                }
+                answered = true;
+            } catch (IOException e) {
+                System.out.println("Couldn't check " + name + " on " + id + ": " + e.getMessage());
+                lastError = e;
+            }
+        }
+
+        // The file is only missing if an owner said so, if none could answer it's unknown
+        if (!answered) {
+            throw lastError;
+        }
+        return null;
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        IOException lastError = new NoSuchFileException(name);
+        for (String id : owners(name)) {
+            try {
+                return nodes.get(id).openRead(name, offset, length);
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    // Writes to every owner at once, the upload succeeds as long as one copy is committed
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        Map<String, PendingWrite> writes = new LinkedHashMap<>();
+        IOException lastError = null;
+
+        for (String id : owners(name)) {
+            try {
+                writes.put(id, nodes.get(id).openWrite(name, size));
+            } catch (IOException e) {
+                System.out.println("Couldn't write " + name + " to " + id + ": " + e.getMessage());
+                lastError = e;
+            }
+        }
+
+        if (writes.isEmpty()) {
+            throw lastError;
+        }
+        return new ReplicatedWrite(name, writes);
+    }
+
+    // Merges the listings of every node
+    // If a node can't be listed the merged files are still returned, in a PartialListingException, as its
+    // files may be missing from them. Only names with every owner listed can be known to be deleted
+    @Override public List<StoredFile> list() throws IOException {
+        Map<String, StoredFile> files = new LinkedHashMap<>();
+        Set<String> failed = new LinkedHashSet<>();
+        for (Map.Entry<String, Storage> node : nodes.entrySet()) {
+            try {
+                for (StoredFile file : node.getValue().list()) {
+                    files.putIfAbsent(file.getName(), file);
+                }
+            } catch (IOException e) {
+                System.out.println("Couldn't list files on " + node.getKey() + ": " + e.getMessage());
+                failed.add(node.getKey());
+            }
+        }
+
+        if (!failed.isEmpty()) {
+            throw new PartialListingException("Couldn't list files on " + String.join(", ", failed),
+                    new ArrayList<>(files.values()), name -> Collections.disjoint(owners(name), failed));
+        }
+        return new ArrayList<>(files.values());
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        boolean deleted = false;
+        for (String id : owners(name)) {
+            try {
+                deleted |= nodes.get(id).delete(name);
+            } catch (IOException e) {
+                System.out.println("Couldn't delete " + name + " from " + id + ": " + e.getMessage());
+            }
+        }
+        return deleted;
+    }
+
+    // The ids of the nodes responsible for a file, in the order they should be tried
+    List<String> owners(String name) {
+        Set<String> ids = new LinkedHashSet<>();
+        SortedMap<Long, String> tail = ring.tailMap(position(name));
+
+        for (String id : tail.values()) {
+            if (ids.size() == replicas) break;
+            ids.add(id);
+        }
+        // Wrap around the ring
+        for (String id : ring.values()) {
+            if (ids.size() == replicas) break;
+            ids.add(id);
+        }
+
+        return new ArrayList<>(ids);
+    }
+
+    // The first 8 bytes of an MD5, which spreads similar names far apart on the ring
+    private static long position(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long position = 0;
+            for (int i = 0; i < 8; i++) {
+                position = (position << 8) | (digest[i] & 0xff);
+            }
+            return position;
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The same data written to every owner, a replica that fails is dropped rather than failing the upload
+    private static class ReplicatedWrite implements PendingWrite {
+        private final String name;
+        private final Map<String, PendingWrite> writes;
+        private boolean open = true;
+
+        ReplicatedWrite(String name, Map<String, PendingWrite> writes) {
+            this.name = name;
+            this.writes = writes;
+        }
+
+        @Override public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            IOException lastError = null;
+
+            for (Map.Entry<String, PendingWrite> write : new ArrayList<>(writes.entrySet())) {
+                ByteBuffer copy = src.duplicate();
+                try {
+                    while (copy.hasRemaining()) {
+                        write.getValue().write(copy);
+                    }
+                } catch (IOException e) {
+                    System.out.println("Dropping copy of " + name + " on " + write.getKey() + ": " + e.getMessage());
+                    write.getValue().close();
+                    writes.remove(write.getKey());
+                    lastError = e;
+                }
+            }
+
+            if (writes.isEmpty()) {
+                throw lastError;
+            }
+
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override public void commit() throws IOException {
+            IOException lastError = null;
+            boolean committed = false;
+
+            for (Map.Entry<String, PendingWrite> write : writes.entrySet()) {
+                try {
+                    write.getValue().commit();
+                    committed = true;
+                } catch (IOException e) {
+                    System.out.println("Couldn't commit " + name + " on " + write.getKey() + ": " + e.getMessage());
+                    lastError = e;
+                }
+            }
+
+            open = false;
+            if (!committed) {
+                throw lastError;
+            }
+        }
+
+        @Override public boolean isOpen() {
+            return open;
+        }
+
+        @Override public void close() throws IOException {
+            for (PendingWrite write : writes.values()) {
+                write.close();
+            }
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.ftp;
+
+import java.io.File;
+
+class DownloadedFile {
+    private File file;
+    private boolean socketError;
+
+    DownloadedFile(boolean socketError, File file) {
+        this.socketError = socketError;
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean hadSocketError() {
+        return socketError;
+    }
+
+    public boolean isSaved() {
+        return file != null;
+    }
+}
@@ -0,0 +1,56 @@
+package com.ftp;
+
+// When uploaded files are flushed to disk
+//   none         left to the operating system, a crash can lose recently uploaded files (default)
+//   on-complete  an upload isn't acknowledged until it's on disk
+//   periodic[:ms] uploads are acknowledged straight away and flushed in the background every ms milliseconds
+//                (1000 by default), so a crash loses at most that much
+class FsyncPolicy {
+    enum Mode { NONE, ON_COMPLETE, PERIODIC }
+
+    private static final int DEFAULT_PERIOD = 1000;
+
+    static final FsyncPolicy NONE = new FsyncPolicy(Mode.NONE, 0);
+
+    private final Mode mode;
+    private final int period;
+
+    private FsyncPolicy(Mode mode, int period) {
+        this.mode = mode;
+        this.period = period;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getPeriod() {
+        return period;
+    }
+
+    // Returns null if the description isn't valid
+    static FsyncPolicy parse(String spec) {
+        switch (spec) {
+            case "none":
+                return NONE;
+            case "on-complete":
+                return new FsyncPolicy(Mode.ON_COMPLETE, 0);
+            case "periodic":
+                return new FsyncPolicy(Mode.PERIODIC, DEFAULT_PERIOD);
+        }
+
+        if (spec.startsWith("periodic:")) {
+            try {
+                int period = Integer.parseInt(spec.substring("periodic:".length()));
+                return period > 0 ? new FsyncPolicy(Mode.PERIODIC, period) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override public String toString() {
+        return mode == Mode.PERIODIC ? "periodic (every " + period + "ms)" : mode.name().toLowerCase().replace('_', '-');
+    }
+}
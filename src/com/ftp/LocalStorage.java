@@ -0,0 +1,294 @@
+package com.ftp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Stores files in a directory on the local filesystem
+// Reads hand back FileChannels so the server can send straight from the file with transferTo
+// Uploads are gathered into large buffers so the disk sees a few big sequential writes rather than one
+// per network read, and are flushed to disk according to the fsync policy
+class LocalStorage implements Storage {
+    // Uploads in progress are written to this directory under the root, which is hidden from listings and
+    // can't be named by clients, so no client file name is ever mistaken for an unfinished upload
+    private static final String TEMP_DIR = ".ftp-tmp";
+
+    // Writes go to disk in blocks of this size, at offsets that are multiples of it
+    private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+    // Direct buffers are expensive to allocate, so they're shared by every upload (at most one per concurrent upload)
+    private static final ConcurrentLinkedQueue<ByteBuffer> writeBuffers = new ConcurrentLinkedQueue<>();
+
+    private final Path root;
+    private final Path tempDir;
+    private final PathResolver paths;
+    private final FsyncPolicy fsync;
+
+    // Files committed since the last periodic sync (only used by the periodic policy)
+    private final ConcurrentLinkedQueue<Path> unsynced = new ConcurrentLinkedQueue<>();
+
+    LocalStorage(String dir, FsyncPolicy fsync) {
+        this.root = Paths.get(dir);
+        this.tempDir = root.resolve(TEMP_DIR);
+        this.paths = new PathResolver(root);
+        this.fsync = fsync;
+        clearTempDir();
+
+        if (fsync.getMode() == FsyncPolicy.Mode.PERIODIC) {
+            ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread th = new Thread(runnable, "fsync");
+                th.setDaemon(true);
+                return th;
+            });
+            syncer.scheduleWithFixedDelay(this::syncCommitted, fsync.getPeriod(), fsync.getPeriod(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Unfinished uploads don't exist as far as clients are concerned
+    @Override public StoredFile stat(String name) throws IOException {
+        Path path = paths.resolve(name);
+        if (path.startsWith(tempDir) || !Files.isRegularFile(path)) {
+            return null;
+        }
+
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new StoredFile(name, attrs.size(), attrs.lastModifiedTime().toMillis());
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(resolve(name), StandardOpenOption.READ);
+        channel.position(offset);
+        return channel;
+    }
+
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        Path target = resolve(name);
+        paths.createParent(target);
+
+        // The final length is set up front, Java has no fallocate so this isn't preallocation on Linux or macOS,
+        // where it makes a sparse file and a full disk still only shows up when the data is written
+        Path temp = tempDir.resolve(UUID.randomUUID().toString());
+        RandomAccessFile file;
+        try {
+            file = new RandomAccessFile(temp.toFile(), "rw");
+        } catch (FileNotFoundException e) {
+            // The temporary directory was removed behind the server's back
+            Files.createDirectories(tempDir);
+            file = new RandomAccessFile(temp.toFile(), "rw");
+        }
+
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            file.close();
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        return new LocalWrite(file.getChannel(), temp, target, size);
+    }
+
+    // Uploads that were in progress when the server last stopped can't be resumed, so they're thrown away
+    private void clearTempDir() {
+        try {
+            Files.createDirectories(tempDir);
+            try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(tempDir)) {
+                for (Path path : leftovers) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Could not clear '" + tempDir + "' (" + e.getMessage() + ")");
+        }
+    }
+
+    // Flushes everything committed since the last time to disk, along with the directory entries pointing to it
+    private void syncCommitted() {
+        Set<Path> files = new HashSet<>();
+        Path file;
+        while ((file = unsynced.poll()) != null) {
+            files.add(file);
+        }
+
+        Set<Path> dirs = new HashSet<>();
+        for (Path path : files) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                channel.force(true);
+                dirs.add(path.getParent());
+            } catch (NoSuchFileException e) {
+                // Deleted since, nothing to sync
+            } catch (IOException e) {
+                System.out.println("Could not sync " + path + " (" + e.getMessage() + ")");
+            }
+        }
+
+        for (Path dir : dirs) {
+            syncDirectory(dir);
+        }
+    }
+
+    // Makes a rename into the directory durable, not every platform allows this (eg. Windows) so failures are ignored
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Nothing more can be done
+        }
+    }
+
+    @Override public List<StoredFile> list() throws IOException {
+        List<StoredFile> files = new ArrayList<>();
+
+        try (Stream<Path> walk = Files.walk(root)) {
+            Iterator<Path> it = walk.filter(path -> !path.startsWith(tempDir) && Files.isRegularFile(path)).iterator();
+            while (it.hasNext()) {
+                Path path = it.next();
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                files.add(new StoredFile(toName(path), attrs.size(), attrs.lastModifiedTime().toMillis()));
+            }
+        }
+
+        return files;
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        Path path = paths.resolve(name);
+        return !path.startsWith(tempDir) && Files.deleteIfExists(path);
+    }
+
+    // The path of a name clients may read or write, names inside the temporary directory are refused
+    private Path resolve(String name) throws IOException {
+        Path path = paths.resolve(name);
+        if (path.startsWith(tempDir)) {
+            throw new IOException("Reserved file name: " + name);
+        }
+        return path;
+    }
+
+    private String toName(Path path) {
+        return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    // Writes to a temporary file which is moved into place on commit
+    private class LocalWrite implements PendingWrite {
+        private final FileChannel channel;
+        private final Path temp;
+        private final Path target;
+        private final long size;
+        private ByteBuffer buffer;
+        private long written = 0;
+        private boolean committed = false;
+
+        LocalWrite(FileChannel channel, Path temp, Path target, long size) {
+            this.channel = channel;
+            this.temp = temp;
+            this.target = target;
+            this.size = size;
+
+            ByteBuffer pooled = writeBuffers.poll();
+            this.buffer = pooled != null ? pooled : ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        }
+
+        @Override public int write(ByteBuffer src) throws IOException {
+            if (buffer == null) {
+                throw new ClosedChannelException();
+            }
+
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                // Copy as much as fits, the buffer is written out each time it fills
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), buffer.remaining()));
+                buffer.put(part);
+                src.position(part.position());
+
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+            }
+
+            written += n;
+            return n;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override public void commit() throws IOException {
+            if (written != size) {
+                throw new IOException("Expected " + size + " bytes but " + written + " were written");
+            }
+
+            flush();
+            if (fsync.getMode() == FsyncPolicy.Mode.ON_COMPLETE) {
+                channel.force(true);
+            }
+            channel.close();
+            releaseBuffer();
+
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // The destination's directory was removed while the upload was in progress
+                paths.forgetParent(target);
+                paths.createParent(target);
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            committed = true;
+
+            if (fsync.getMode() == FsyncPolicy.Mode.ON_COMPLETE) {
+                syncDirectory(target.getParent());
+            } else if (fsync.getMode() == FsyncPolicy.Mode.PERIODIC) {
+                unsynced.add(target);
+            }
+        }
+
+        private void releaseBuffer() {
+            if (buffer != null) {
+                buffer.clear();
+                writeBuffers.add(buffer);
+                buffer = null;
+            }
+        }
+
+        @Override public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override public void close() throws IOException {
+            if (!committed) {
+                releaseBuffer();
+                channel.close();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
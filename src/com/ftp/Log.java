@@ -0,0 +1,32 @@
+package com.ftp;
+
+import java.io.PrintStream;
+import java.util.function.Consumer;
+
+// Client side logging, messages go to stdout (or another stream) and optionally to a UI as well
+class Log {
+    private static volatile Consumer<String> sink = null;
+    private static volatile PrintStream output = System.out;
+
+    // Sets where messages are sent besides stdout (eg. the GUI's status list), or null for stdout only
+    public static void init(Consumer<String> sink) {
+        Log.sink = sink;
+    }
+
+    // Sets the stream messages are printed to instead of stdout, or null to print nothing (eg. while benchmarking)
+    public static void setOutput(PrintStream output) {
+        Log.output = output;
+    }
+
+    public static void log(String msg) {
+        PrintStream out = output;
+        if (out != null) {
+            out.println(msg);
+        }
+
+        Consumer<String> current = sink;
+        if (current != null) {
+            current.accept(msg);
+        }
+    }
+}
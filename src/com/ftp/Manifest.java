@@ -0,0 +1,203 @@
+package com.ftp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The server's record of every stored file's size, modification time and hash, used by SYNC
+// Uploads and deletes keep it up to date as they happen, and a refresh only rehashes
+// files that have been changed behind the server's back. Refreshes run in the background,
+// so SYNC answers from the entries as they are instead of waiting for storage to be walked
+// It can be saved to a snapshot so a restarted server doesn't have to hash every file again
+class Manifest {
+    // Snapshot format: magic, version, number of entries, then each entry as
+    // path length, path (UTF-8), size, modification time, raw SHA-256
+    private static final int SNAPSHOT_MAGIC = 0x46545053;  // "FTPS"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int HASH_BYTES = 32;
+
+    private final Storage storage;
+    private final ConcurrentHashMap<String, ManifestEntry> entries = new ConcurrentHashMap<>();
+
+    // Set whenever the entries change, so unchanged manifests aren't saved again
+    private volatile boolean changed = false;
+
+    // Set once the entries reflect storage, from a snapshot or a refresh
+    private volatile boolean ready = false;
+
+    // Names written or deleted since the current refresh started, which the refresh leaves alone
+    // as what it listed may already be out of date (eg. an upload committed after the listing)
+    private final Set<String> touched = ConcurrentHashMap.newKeySet();
+
+    Manifest(Storage storage) {
+        this.storage = storage;
+    }
+
+    // Brings the manifest in line with the files in storage and returns its entries
+    // Files are only rehashed if their size or modification time differs from what's recorded
+    // Uploads and deletes carry on while this runs, the entries they make always win over what was listed
+    // If storage could only be listed in part, what was listed is recorded but only names the listing vouches
+    // for are pruned, and the PartialListingException is rethrown once that's done
+    synchronized List<ManifestEntry> refresh() throws IOException {
+        touched.clear();
+        Set<String> before = new HashSet<>(entries.keySet());
+
+        List<StoredFile> listed;
+        Storage.PartialListingException partial = null;
+        try {
+            listed = storage.list();
+        } catch (Storage.PartialListingException e) {
+            listed = e.getFiles();
+            partial = e;
+        }
+
+        Set<String> seen = new HashSet<>();
+        for (StoredFile file : listed) {
+            String name = file.getName();
+            seen.add(name);
+
+            ManifestEntry entry = entries.get(name);
+            if (entry != null && entry.getSize() == file.getSize() && entry.getModified() == file.getModified()) {
+                continue;
+            }
+
+            String hash = file.getHash();
+            if (hash == null) {
+                try (InputStream stream = Channels.newInputStream(storage.openRead(name, 0, file.getSize()))) {
+                    hash = ManifestEntry.hash(stream);
+                } catch (NoSuchFileException e) {
+                    // Deleted since it was listed
+                    seen.remove(name);
+                    continue;
+                }
+            }
+
+            ManifestEntry listedEntry = new ManifestEntry(name, file.getSize(), file.getModified(), hash);
+            entries.compute(name, (key, current) -> touched.contains(key) ? current : listedEntry);
+            changed = true;
+        }
+
+        // Anything that was recorded before the listing and isn't in it has been deleted
+        // An entry replaced since then is a newer write, so only the one that was there is removed
+        for (String name : before) {
+            ManifestEntry current = entries.get(name);
+            if (current != null && !seen.contains(name) && !touched.contains(name)
+                    && (partial == null || partial.isComplete(name)) && entries.remove(name, current)) {
+                changed = true;
+            }
+        }
+
+        // A manifest built from a partial listing would be missing files, so it isn't ready until a complete one
+        if (partial != null) {
+            throw partial;
+        }
+        ready = true;
+        return new ArrayList<>(entries.values());
+    }
+
+    // The entries as they are, without checking storage
+    List<ManifestEntry> entries() {
+        return new ArrayList<>(entries.values());
+    }
+
+    boolean isReady() {
+        return ready;
+    }
+
+    // Records a file the server has just written, along with the hash of the data written
+    // Names are already normalised by the connection, so they match what a listing produces
+    void update(String name, String hash) throws IOException {
+        StoredFile file = storage.stat(name);
+        if (file != null) {
+            touched.add(name);
+            entries.put(name, new ManifestEntry(name, file.getSize(), file.getModified(), hash));
+            changed = true;
+        }
+    }
+
+    void remove(String name) {
+        touched.add(name);
+        if (entries.remove(name) != null) {
+            changed = true;
+        }
+    }
+
+    // Loads the entries saved by save, returning how many there were
+    // The snapshot is mapped rather than read so even a large one loads quickly, and entries are
+    // trusted only until the next refresh checks them against storage
+    int load(Path snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < 12 || buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Not a manifest snapshot (or from a different version)");
+            }
+
+            int count = buffer.getInt();
+            byte[] hash = new byte[HASH_BYTES];
+            try {
+                for (int i = 0; i < count; i++) {
+                    byte[] path = new byte[buffer.getShort() & 0xffff];
+                    buffer.get(path);
+                    long size = buffer.getLong();
+                    long modified = buffer.getLong();
+                    buffer.get(hash);
+
+                    String name = new String(path, StandardCharsets.UTF_8);
+                    entries.put(name, new ManifestEntry(name, size, modified, ManifestEntry.toHex(hash)));
+                }
+            } catch (BufferUnderflowException e) {
+                entries.clear();
+                throw new IOException("Snapshot is truncated");
+            }
+            ready = true;
+            return count;
+        }
+    }
+
+    // Writes every entry to a snapshot if anything has changed since the last one
+    // The snapshot is replaced in one step, so a crash part way through leaves the previous one intact
+    synchronized void save(Path snapshot) throws IOException {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+
+        List<ManifestEntry> current = new ArrayList<>(entries.values());
+        Path temp = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(current.size());
+            for (ManifestEntry entry : current) {
+                byte[] path = entry.getPath().getBytes(StandardCharsets.UTF_8);
+                out.writeShort(path.length);
+                out.write(path);
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getModified());
+                out.write(ManifestEntry.fromHex(entry.getHash()));
+            }
+        } catch (IOException e) {
+            changed = true;
+            throw e;
+        }
+
+        Files.move(temp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.ftp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// A single file in a manifest, also used for sending the manifest over the connection
+class ManifestEntry {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final String path;
+    private final long size;
+    private final long modified;
+    private final String hash;
+
+    ManifestEntry(String path, long size, long modified, String hash) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeUTF(hash);
+    }
+
+    static ManifestEntry read(DataInputStream in) throws IOException {
+        return new ManifestEntry(in.readUTF(), in.readLong(), in.readLong(), in.readUTF());
+    }
+
+    // Hex encoded SHA-256 of a file's contents
+    static String hash(File file) throws IOException {
+        try (InputStream stream = Files.newInputStream(file.toPath())) {
+            return hash(stream);
+        }
+    }
+
+    static String hash(InputStream stream) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = stream.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+        }
+
+        return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (Character.digit(hex.charAt(i * 2), 16) << 4 | Character.digit(hex.charAt(i * 2 + 1), 16));
+        }
+        return bytes;
+    }
+
+    // Done by hand as this runs for every entry when a snapshot is loaded
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,78 @@
+package com.ftp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+// A storage listed from its manifest, hashes included, so a manifest built on top of it (eg. a cluster's)
+// never has to hash its files again. Writes and deletes made through it are recorded in the manifest
+class ManifestedStorage implements Storage {
+    private final Storage storage;
+    private final Manifest manifest;
+
+    ManifestedStorage(Storage storage, Manifest manifest) {
+        this.storage = storage;
+        this.manifest = manifest;
+    }
+
+    @Override public StoredFile stat(String name) throws IOException {
+        return storage.stat(name);
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        return storage.openRead(name, offset, length);
+    }
+
+    // The data is hashed as it's written, the same as a direct upload
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        PendingWrite write = storage.openWrite(name, size);
+        MessageDigest digest = ManifestEntry.newDigest();
+
+        return new PendingWrite() {
+            @Override public int write(ByteBuffer src) throws IOException {
+                ByteBuffer written = src.duplicate();
+                int n = write.write(src);
+                written.limit(written.position() + n);
+                digest.update(written);
+                return n;
+            }
+
+            @Override public void commit() throws IOException {
+                write.commit();
+                manifest.update(name, ManifestEntry.toHex(digest.digest()));
+            }
+
+            @Override public boolean isOpen() {
+                return write.isOpen();
+            }
+
+            @Override public void close() throws IOException {
+                write.close();
+            }
+        };
+    }
+
+    // Until the manifest has been built the files are listed without hashes
+    @Override public List<StoredFile> list() throws IOException {
+        if (!manifest.isReady()) {
+            return storage.list();
+        }
+
+        List<StoredFile> files = new ArrayList<>();
+        for (ManifestEntry entry : manifest.entries()) {
+            files.add(new StoredFile(entry.getPath(), entry.getSize(), entry.getModified(), entry.getHash()));
+        }
+        return files;
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        boolean deleted = storage.delete(name);
+        if (deleted) {
+            manifest.remove(name);
+        }
+        return deleted;
+    }
+}
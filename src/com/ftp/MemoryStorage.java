@@ -0,0 +1,96 @@
+package com.ftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps every file in memory, for tests and benchmarks that shouldn't be limited by disk speed
+class MemoryStorage implements Storage {
+    private final ConcurrentHashMap<String, MemoryFile> files = new ConcurrentHashMap<>();
+
+    @Override public StoredFile stat(String name) {
+        MemoryFile file = files.get(name);
+        return file == null ? null : new StoredFile(name, file.data.length, file.modified);
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        MemoryFile file = files.get(name);
+        if (file == null) {
+            throw new NoSuchFileException(name);
+        }
+
+        // Reads stop at the end of the file, so the length is capped to what's there before it's narrowed to an int
+        if (offset < 0 || offset > file.data.length || length < 0) {
+            throw new IOException("Invalid range for " + name + " (offset " + offset + ", length " + length + ")");
+        }
+        int available = (int) Math.min(length, file.data.length - offset);
+        return Channels.newChannel(new ByteArrayInputStream(file.data, (int) offset, available));
+    }
+
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large to hold in memory (" + size + " bytes)");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        return new PendingWrite() {
+            private boolean open = true;
+
+            @Override public int write(ByteBuffer src) throws IOException {
+                if (src.remaining() > buffer.remaining()) {
+                    throw new IOException("More than " + size + " bytes written");
+                }
+
+                int n = src.remaining();
+                buffer.put(src);
+                return n;
+            }
+
+            @Override public void commit() throws IOException {
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Expected " + size + " bytes but " + buffer.position() + " were written");
+                }
+
+                files.put(name, new MemoryFile(buffer.array(), System.currentTimeMillis()));
+                open = false;
+            }
+
+            @Override public boolean isOpen() {
+                return open;
+            }
+
+            @Override public void close() {
+                open = false;
+            }
+        };
+    }
+
+    @Override public List<StoredFile> list() {
+        List<StoredFile> list = new ArrayList<>();
+        for (Map.Entry<String, MemoryFile> entry : files.entrySet()) {
+            list.add(new StoredFile(entry.getKey(), entry.getValue().data.length, entry.getValue().modified));
+        }
+        return list;
+    }
+
+    @Override public boolean delete(String name) {
+        return files.remove(name) != null;
+    }
+
+    private static class MemoryFile {
+        final byte[] data;
+        final long modified;
+
+        MemoryFile(byte[] data, long modified) {
+            this.data = data;
+            this.modified = modified;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Maps file names onto paths under a root directory
+// Names are checked and normalised as strings, so rejecting "../" and the like costs no filesystem calls,
+// and directories that are known to exist are remembered so writes don't have to create them every time
+class PathResolver {
+    // Enough for the directories in active use, forgetting them all now and then only costs a few mkdirs
+    private static final int MAX_KNOWN_DIRS = 10000;
+
+    // On Windows a ':' in a name could make it a drive ("C:x") or an alternate data stream ("a:b"),
+    // everywhere else it's an ordinary character (eg. "12:00.log")
+    private static final boolean REFUSE_COLON = File.separatorChar == '\\';
+
+    private final Path root;
+    private final Set<Path> knownDirs = ConcurrentHashMap.newKeySet();
+
+    PathResolver(Path root) {
+        this.root = root;
+    }
+
+    // Returns the canonical form of a name ("a/b/c", no empty, "." or ".." parts), or null if the name is
+    // empty or would leave the root
+    // Both '/' and '\' count as separators so a name means the same thing whatever the server runs on
+    static String normalise(String name) {
+        Deque<String> parts = new ArrayDeque<>();
+        int start = 0;
+        for (int i = 0; i <= name.length(); i++) {
+            char c = i < name.length() ? name.charAt(i) : '/';
+            if (c == '\0' || (c == ':' && REFUSE_COLON)) {
+                return null;
+            }
+            if (c != '/' && c != '\\') {
+                continue;
+            }
+
+            String part = name.substring(start, i);
+            start = i + 1;
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                if (parts.pollLast() == null) {
+                    return null;
+                }
+                continue;
+            }
+            parts.addLast(part);
+        }
+
+        return parts.isEmpty() ? null : String.join("/", parts);
+    }
+
+    // The path of a name under the root
+    Path resolve(String name) throws IOException {
+        String normalised = normalise(name);
+        if (normalised == null) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        return root.resolve(normalised);
+    }
+
+    // Makes sure the directory a file is going in exists
+    void createParent(Path file) throws IOException {
+        Path dir = file.getParent();
+        if (knownDirs.contains(dir)) {
+            return;
+        }
+
+        Files.createDirectories(dir);
+        if (knownDirs.size() >= MAX_KNOWN_DIRS) {
+            knownDirs.clear();
+        }
+        knownDirs.add(dir);
+    }
+
+    // For when a directory turned out not to exist after all (eg. it was removed behind the server's back)
+    void forgetParent(Path file) {
+        knownDirs.remove(file.getParent());
+    }
+}
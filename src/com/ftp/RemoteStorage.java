@@ -0,0 +1,375 @@
+package com.ftp;
+
+import javax.net.ssl.SSLContext;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Files held by another server, accessed over the normal protocol
+// Connections from a cluster node announce themselves with PEER so the other server only uses its own local
+// storage, anything else (eg. a proxy) sees the same files as a client would
+class RemoteStorage implements Storage {
+    // Idle connections aren't reused after this long (ms), they're closed the next time the pool is used
+    // The other server keeps a connection open however long it's idle, but each one costs it a connection slot,
+    // and the longer one has been idle the more likely it is to have been cut by a restart or a firewall in between
+    private static final int MAX_IDLE = 30 * 1000;
+
+    private final String host;
+    private final int port;
+    private final int timeout;
+    private final SSLContext tls;
+    private final boolean peer;
+
+    // Connections not currently in use (guarded by this)
+    private final Deque<PeerConnection> idle = new ArrayDeque<>();
+
+    // tls is null to connect in plaintext
+    RemoteStorage(String host, int port, int timeout, SSLContext tls, boolean peer) {
+        this.host = host;
+        this.port = port;
+        this.timeout = timeout;
+        this.tls = tls;
+        this.peer = peer;
+    }
+
+    @Override public StoredFile stat(String name) throws IOException {
+        PeerConnection conn = acquire();
+        try {
+            conn.out.writeUTF("STAT");
+            conn.writeName(name);
+            conn.out.flush();
+
+            StoredFile file = null;
+            if (conn.in.readBoolean()) {
+                file = new StoredFile(name, conn.in.readLong(), conn.in.readLong());
+            }
+
+            release(conn);
+            return file;
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        PeerConnection conn = acquire();
+        try {
+            conn.out.writeUTF("DWLD");
+            conn.writeName(name);
+            conn.out.flush();
+
+            int fileSize = conn.in.readInt();
+            if (fileSize == -1) {
+                release(conn);
+                throw new NoSuchFileException(name);
+            } else if (fileSize == -2) {
+                int retryAfter = conn.in.readInt();
+                release(conn);
+                throw new BusyException(this + " is busy", retryAfter);
+            } else if (fileSize < 0) {
+                throw new IOException(this + " returned an invalid file size (" + fileSize + ")");
+            }
+
+            // DWLD always sends the whole file, so skip up to the offset
+            conn.out.writeBoolean(true);
+            conn.out.flush();
+            long toSkip = offset;
+            while (toSkip > 0) {
+                int skipped = conn.in.skipBytes((int) Math.min(toSkip, Integer.MAX_VALUE));
+                if (skipped <= 0) {
+                    throw new EOFException(this + " closed the connection");
+                }
+                toSkip -= skipped;
+            }
+
+            return new RemoteRead(conn, fileSize - offset, Math.min(length, fileSize - offset));
+        } catch (IOException e) {
+            if (!(e instanceof NoSuchFileException) && !(e instanceof BusyException)) {
+                conn.close();
+            }
+            throw e;
+        }
+    }
+
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("File too large to send to " + this + " (" + size + " bytes)");
+        }
+
+        PeerConnection conn = acquire();
+        try {
+            conn.out.writeUTF("UPLD");
+            conn.writeName(name);
+            conn.out.writeInt((int) size);
+            conn.out.flush();
+
+            // Rejections are followed by a reason and a retry delay
+            if (!conn.in.readBoolean()) {
+                String reason = conn.in.readUTF();
+                conn.in.readInt();
+                conn.close();
+                throw new IOException(this + " rejected the upload (" + reason + ")");
+            }
+
+            return new RemoteWrite(conn, size);
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    // Uses the other server's manifest so its hashes don't need to be recalculated here
+    @Override public List<StoredFile> list() throws IOException {
+        PeerConnection conn = acquire();
+        try {
+            conn.out.writeUTF("SYNC");
+            conn.out.flush();
+
+            int numEntries = conn.in.readInt();
+            if (numEntries == -2) {
+                conn.in.readInt();
+                release(conn);
+                throw new IOException(this + " is still building its manifest");
+            } else if (numEntries < 0) {
+                throw new IOException(this + " returned an invalid manifest size (" + numEntries + ")");
+            }
+
+            List<StoredFile> files = new ArrayList<>(numEntries);
+            for (int i = 0; i < numEntries; i++) {
+                ManifestEntry entry = ManifestEntry.read(conn.in);
+                files.add(new StoredFile(entry.getPath(), entry.getSize(), entry.getModified(), entry.getHash()));
+            }
+
+            release(conn);
+            return files;
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        PeerConnection conn = acquire();
+        try {
+            conn.out.writeUTF("DELF");
+            conn.writeName(name);
+            conn.out.flush();
+
+            if (conn.in.readInt() != 1) {
+                release(conn);
+                return false;
+            }
+
+            conn.out.writeBoolean(true);
+            conn.out.flush();
+            boolean deleted = conn.in.readUTF().equals("File deleted");
+            release(conn);
+            return deleted;
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    private PeerConnection acquire() throws IOException {
+        synchronized (this) {
+            PeerConnection conn;
+            while ((conn = idle.poll()) != null) {
+                if (System.currentTimeMillis() - conn.releasedAt < MAX_IDLE) {
+                    return conn;
+                }
+                conn.close();
+            }
+        }
+
+        // The timeout covers connecting too, so a node that's down doesn't hold up whoever's waiting on it
+        Socket socket;
+        if (tls != null) {
+            socket = Tls.connect(tls, host, port, timeout);
+        } else {
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+        PeerConnection conn = new PeerConnection(socket);
+        try {
+            socket.setSoTimeout(timeout);
+
+            // The greeting is false, a reason and a retry delay if the other server is full
+            if (!conn.in.readBoolean()) {
+                String reason = conn.in.readUTF();
+                conn.in.readInt();
+                throw new IOException(this + " refused the connection (" + reason + ")");
+            }
+
+            if (peer) {
+                conn.out.writeUTF("PEER");
+            }
+            return conn;
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    private synchronized void release(PeerConnection conn) {
+        conn.releasedAt = System.currentTimeMillis();
+        idle.push(conn);
+
+        // The longest idle are at the end
+        PeerConnection oldest;
+        while ((oldest = idle.peekLast()) != null && conn.releasedAt - oldest.releasedAt >= MAX_IDLE) {
+            idle.pollLast().close();
+        }
+    }
+
+    @Override public String toString() {
+        return host + ":" + port;
+    }
+
+    private static class PeerConnection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        long releasedAt;
+
+        PeerConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            OutputStream socketOut = Tls.output(socket);
+            this.in = new DataInputStream(Tls.input(socket, socketOut));
+            this.out = new DataOutputStream(socketOut);
+        }
+
+        void writeName(String name) throws IOException {
+            out.writeShort(name.length());
+            out.writeChars(name);
+        }
+
+        void close() {
+            try { socket.close(); } catch (IOException f) { /* Do nothing */ }
+        }
+    }
+
+    // Reads a DWLD body, the connection can only be reused if the whole body was read
+    private class RemoteRead implements ReadableByteChannel {
+        private final PeerConnection conn;
+        private long unread;
+        private long remaining;
+        private boolean open = true;
+
+        RemoteRead(PeerConnection conn, long unread, long length) {
+            this.conn = conn;
+            this.unread = unread;
+            this.remaining = length;
+        }
+
+        @Override public int read(ByteBuffer dst) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int len = (int) Math.min(dst.remaining(), remaining);
+            int n = conn.in.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+            if (n < 0) {
+                throw new EOFException(RemoteStorage.this + " closed the connection");
+            }
+
+            dst.position(dst.position() + n);
+            remaining -= n;
+            unread -= n;
+            return n;
+        }
+
+        @Override public boolean isOpen() {
+            return open;
+        }
+
+        @Override public void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+
+            if (unread == 0) {
+                release(conn);
+            } else {
+                conn.close();
+            }
+        }
+    }
+
+    // Sends an UPLD body, the other server replies once it has all of it
+    private class RemoteWrite implements PendingWrite {
+        private final PeerConnection conn;
+        private final long size;
+        private long written = 0;
+        private boolean open = true;
+
+        RemoteWrite(PeerConnection conn, long size) {
+            this.conn = conn;
+            this.size = size;
+        }
+
+        @Override public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            if (written + n > size) {
+                throw new IOException("More than " + size + " bytes written");
+            }
+
+            if (src.hasArray()) {
+                conn.out.write(src.array(), src.arrayOffset() + src.position(), n);
+                src.position(src.limit());
+            } else {
+                byte[] bytes = new byte[n];
+                src.get(bytes);
+                conn.out.write(bytes);
+            }
+
+            written += n;
+            return n;
+        }
+
+        @Override public void commit() throws IOException {
+            if (written != size) {
+                throw new IOException("Expected " + size + " bytes but " + written + " were written");
+            }
+
+            conn.out.flush();
+            String response = conn.in.readUTF();
+            open = false;
+            release(conn);
+
+            if (response.startsWith("Server error")) {
+                throw new IOException(RemoteStorage.this + ": " + response);
+            }
+        }
+
+        @Override public boolean isOpen() {
+            return open;
+        }
+
+        // An upload can't be abandoned part way through, so the connection has to go
+        @Override public void close() {
+            if (open) {
+                open = false;
+                conn.close();
+            }
+        }
+    }
+}
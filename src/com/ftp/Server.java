@@ -1,29 +1,85 @@
 package com.ftp;
 
+import javax.net.ssl.SSLContext;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
     // Constants
     private final static int DEFAULT_PORT = 1234;
     private final static int DEFAULT_TIMEOUT = 5000;
+    private final static int DEFAULT_MAX_CONNECTIONS = 100;
+    private final static int DEFAULT_MAX_TRANSFERS = 20;
+    private final static int DEFAULT_MAX_IN_FLIGHT_MB = 256;
+    private final static int DEFAULT_RETRY_AFTER = 1000;
+    private final static int DEFAULT_CACHE_MB = 1024;
+    private final static int DEFAULT_SNAPSHOT_INTERVAL = 300;
+    private final static int DEFAULT_MANIFEST_REFRESH = 60;
+    private final static String DEFAULT_SNAPSHOT = "manifest.snapshot";
+
+    // Connections turned away while at capacity are sent the busy greeting by a few threads of their own,
+    // with a short timeout, so a client that's slow to handshake or read can't hold up accepting others
+    private final static int REJECT_THREADS = 2;
+    private final static int REJECT_QUEUE = 100;
+    private final static int REJECT_TIMEOUT = 1000;
     public final static String BASE_DIR = "server_files/";
 
+    // How long a client is told to wait before asking again for a manifest that is still being built (ms)
+    public final static int MANIFEST_RETRY_AFTER = 2000;
+
     // Configurable shared run time constants (via command line)
     public static int TIMEOUT;
+    public static Admission ADMISSION;
+    public static Storage STORAGE;
+    public static Manifest MANIFEST;
+
+    // This node's own files, the same as STORAGE and MANIFEST unless the server is part of a cluster
+    public static Storage LOCAL_STORAGE;
+    public static Manifest LOCAL_MANIFEST;
+
+    // Set to accept connections over TLS, and for connecting to other servers over TLS (null for plaintext)
+    public static SSLContext TLS;
+    public static SSLContext TLS_CLIENT;
+
+    private final ExecutorService rejects = new ThreadPoolExecutor(REJECT_THREADS, REJECT_THREADS, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(REJECT_QUEUE), runnable -> {
+                Thread th = new Thread(runnable, "reject");
+                th.setDaemon(true);
+                return th;
+            });
 
     private void run(int port, int timeout) {
         // Open port
         ServerSocket serverSocket;
         try {
-            serverSocket = new ServerSocket(port);
+            // Opened through a channel so accepted sockets can send files with transferTo
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.bind(new InetSocketAddress(port));
         } catch (Exception e) {
             System.out.println("Couldn't open socket. " + e.getMessage());
             return;
         }
-        System.out.println("Server started on port " + port + " with timeout " + timeout + "ms");
+        System.out.println("Server started on port " + port + " with timeout " + timeout + "ms" + (TLS != null ? " using TLS" : ""));
 
         int curID = 1;
 
@@ -32,7 +88,31 @@ public class Server {
             try {
                 Socket clientSocket = serverSocket.accept();
                 clientSocket.setSoTimeout(timeout);
-                new Thread(new ServerConnection(clientSocket, curID)).start();
+                if (TLS != null) {
+                    clientSocket = Tls.accept(TLS, clientSocket);
+                }
+
+                // Turn the connection away straight away if we're already at capacity
+                // If even the rejections are backed up it's just closed, the client sees the same as a failed connect
+                if (!ADMISSION.tryAcquireConnection()) {
+                    Socket rejected = clientSocket;
+                    try {
+                        rejects.execute(() -> rejectBusy(rejected, Math.min(timeout, REJECT_TIMEOUT)));
+                    } catch (RejectedExecutionException e) {
+                        try { rejected.close(); } catch (IOException f) { /* Do nothing */ }
+                    }
+                    continue;
+                }
+
+                // The connection thread releases the permit when it finishes, so if it never starts it has to be released here
+                try {
+                    new Thread(new ServerConnection(clientSocket, curID)).start();
+                } catch (RuntimeException | Error e) {
+                    ADMISSION.releaseConnection();
+                    System.out.println("Could not start connection thread: " + e);
+                    try { clientSocket.close(); } catch (IOException f) { /* Do nothing */ }
+                    continue;
+                }
                 curID++;
             } catch (IOException e) {
                 System.out.println("Error accepting client connection: " + e.getMessage());
@@ -40,6 +120,23 @@ public class Server {
         }
     }
 
+    // Sends the busy greeting and closes the socket without spawning a connection thread
+    // With TLS this includes the handshake, which is why it doesn't run on the accept thread
+    private void rejectBusy(Socket clientSocket, int timeout) {
+        try {
+            clientSocket.setSoTimeout(timeout);
+            DataOutputStream output = new DataOutputStream(clientSocket.getOutputStream());
+            output.writeBoolean(false);
+            output.writeUTF(ADMISSION.busyMessage());
+            output.writeInt(ADMISSION.getRetryAfter());
+            output.flush();
+        } catch (IOException e) {
+            // The client will see the connection close either way
+        }
+
+        try { clientSocket.close(); } catch (IOException f) { /* Do nothing */ }
+    }
+
     public static void main(String[] args) {
         // Create base dir if it doesn't exist
         File bd = new File(BASE_DIR);
@@ -52,14 +149,265 @@ public class Server {
             }
         }
 
+        // Options are given as --name=value, everything else is positional
+        List<String> positional = new ArrayList<>();
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            (arg.startsWith("--") ? options : positional).add(arg);
+        }
+        args = positional.toArray(new String[0]);
+
         // Get user input for configurable options
         int port = parseCommandLineInteger(args, 0, "Port number must be a positive integer", DEFAULT_PORT);
         int timeout = parseCommandLineInteger(args, 1, "Timeout must be a positive integer (ms)", DEFAULT_TIMEOUT);
+        int maxConnections = parseCommandLineInteger(args, 2, "Maximum connections must be a positive integer", DEFAULT_MAX_CONNECTIONS);
+        int maxTransfers = parseCommandLineInteger(args, 3, "Maximum transfers must be a positive integer", DEFAULT_MAX_TRANSFERS);
+        int maxInFlightMB = parseCommandLineInteger(args, 4, "Maximum in-flight data must be a positive integer (MB)", DEFAULT_MAX_IN_FLIGHT_MB);
+
+        ADMISSION = new Admission(maxConnections, maxTransfers, maxInFlightMB * 1024L * 1024L, DEFAULT_RETRY_AFTER);
+        System.out.println("Limits: " + maxConnections + " connections, " + maxTransfers + " transfers, " + maxInFlightMB + "MB in flight");
+
+        TIMEOUT = timeout;
+        if (!setupTls(options)) {
+            return;
+        }
+
+        FsyncPolicy fsync = FsyncPolicy.parse(getOption(options, "fsync", "none"));
+        if (fsync == null) {
+            System.out.println("Fsync policy must be none, on-complete or periodic[:ms], using none");
+            fsync = FsyncPolicy.NONE;
+        }
+        System.out.println("Fsync policy: " + fsync);
+
+        LOCAL_STORAGE = createStorage(getOption(options, "storage", "local"), fsync);
+        if (LOCAL_STORAGE == null) {
+            System.exit(1);
+        }
+        LOCAL_MANIFEST = new Manifest(LOCAL_STORAGE);
+
+        String cluster = getOption(options, "cluster", null);
+        String upstream = getOption(options, "upstream", null);
+        if (upstream != null) {
+            // As a proxy the local storage only holds the cache, so peers get the same view as clients
+            int cacheMB = parseOptionInteger(getOption(options, "cache-mb", null), "Cache size must be a positive integer (MB)", DEFAULT_CACHE_MB);
+            STORAGE = LOCAL_STORAGE = createProxy(upstream, LOCAL_STORAGE, cacheMB * 1024L * 1024L, timeout);
+            if (STORAGE == null) {
+                System.out.println("Could not start the proxy");
+                System.exit(1);
+            }
+            MANIFEST = LOCAL_MANIFEST = new Manifest(STORAGE);
+        } else if (cluster != null) {
+            String node = getOption(options, "node", "localhost:" + port);
+            int replicas = parseOptionInteger(getOption(options, "replicas", null), "Replicas must be a positive integer", 1);
+            STORAGE = createCluster(cluster, node, replicas, timeout);
+            MANIFEST = new Manifest(STORAGE);
+        } else {
+            STORAGE = LOCAL_STORAGE;
+            MANIFEST = LOCAL_MANIFEST;
+        }
+
+        // Manifests are refreshed and saved on one thread, in the order they're scheduled here
+        ScheduledExecutorService manifests = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread th = new Thread(runnable, "manifest");
+            th.setDaemon(true);
+            return th;
+        });
+
+        // Other nodes' manifests are fetched from them, so only this node's needs a snapshot
+        int snapshotInterval = parseOptionInteger(getOption(options, "snapshot-interval", null), "Snapshot interval must be a positive integer (s)", DEFAULT_SNAPSHOT_INTERVAL);
+        int refreshInterval = parseOptionInteger(getOption(options, "manifest-refresh", null), "Manifest refresh interval must be a positive integer (s)", DEFAULT_MANIFEST_REFRESH);
+        startSnapshots(manifests, LOCAL_MANIFEST, Paths.get(getOption(options, "snapshot", DEFAULT_SNAPSHOT)), snapshotInterval, refreshInterval);
+        if (MANIFEST != LOCAL_MANIFEST) {
+            keepCurrent(manifests, MANIFEST, refreshInterval);
+        }
 
         // Run server
         new Server().run(port, timeout);
     }
 
+    // Builds the storage backend from its description:
+    //   local                  files in BASE_DIR (default)
+    //   sharded:dir1,dir2,...  files spread across several directories, eg. one per disk
+    //   chunked[:dir]          files split into deduplicated chunks (in BASE_DIR unless a directory is given)
+    //   memory                 files held in memory, for tests and benchmarks
+    // Files on local disks are flushed according to fsync, returns null if the storage can't honour it or can't be opened
+    private static Storage createStorage(String spec, FsyncPolicy fsync) {
+        // Memory has nothing to flush and chunks aren't flushed, starting anyway would promise durability that isn't there
+        boolean chunked = spec.equals("chunked") || spec.startsWith("chunked:");
+        if ((chunked || spec.equals("memory")) && fsync.getMode() != FsyncPolicy.Mode.NONE) {
+            System.out.println("Fsync policy " + fsync + " is only supported by local and sharded storage");
+            return null;
+        }
+
+        if (spec.equals("memory")) {
+            System.out.println("Storing files in memory");
+            return new MemoryStorage();
+        }
+
+        if (chunked) {
+            String dir = spec.equals("chunked") ? BASE_DIR : spec.substring("chunked:".length());
+            try {
+                System.out.println("Storing files as deduplicated chunks in '" + dir + "'");
+                return new ChunkStorage(dir);
+            } catch (IOException e) {
+                // Storing whole files in the same directory would mix them in with the chunks, so don't start at all
+                // The class is logged too as some failures (eg. a truncated recipe) have no message
+                System.out.println("Could not open chunk store (" + e.getClass().getSimpleName() + ": " + e.getMessage() + ")");
+                return null;
+            }
+        }
+
+        if (spec.startsWith("sharded:")) {
+            List<Storage> shards = new ArrayList<>();
+            for (String dir : spec.substring("sharded:".length()).split(",")) {
+                if (!new File(dir).isDirectory() && !new File(dir).mkdirs()) {
+                    System.out.println("Could not create shard directory '" + dir + "'");
+                }
+                shards.add(new LocalStorage(dir, fsync));
+            }
+
+            System.out.println("Storing files across " + shards.size() + " shards");
+            return new ShardedStorage(shards);
+        }
+
+        if (!spec.equals("local")) {
+            System.out.println("Unknown storage '" + spec + "', using local storage");
+        }
+        return new LocalStorage(BASE_DIR, fsync);
+    }
+
+    // Restores the manifest from its last snapshot and keeps the snapshot up to date
+    // The server starts accepting connections straight away, the manifest is checked against storage in the
+    // background (only changed files are rehashed) and is saved once that's done, every interval seconds and at shutdown
+    private static void startSnapshots(ScheduledExecutorService manifests, Manifest manifest, Path snapshot, int interval, int refreshInterval) {
+        if (Files.exists(snapshot)) {
+            long start = System.currentTimeMillis();
+            try {
+                int count = manifest.load(snapshot);
+                System.out.println("Loaded " + count + " manifest entries in " + (System.currentTimeMillis() - start) + "ms");
+            } catch (IOException e) {
+                System.out.println("Could not load manifest snapshot (" + e.getMessage() + "), rebuilding it");
+            }
+        }
+
+        // The first refresh is scheduled first, so the first save follows it
+        keepCurrent(manifests, manifest, refreshInterval);
+        manifests.execute(() -> saveSnapshot(manifest, snapshot));
+
+        manifests.scheduleWithFixedDelay(() -> saveSnapshot(manifest, snapshot), interval, interval, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> saveSnapshot(manifest, snapshot)));
+    }
+
+    // Refreshes a manifest now and every interval seconds, picking up files changed behind the server's back
+    // (and, in a cluster, files written through other nodes) so SYNC never has to wait for storage to be walked
+    private static void keepCurrent(ScheduledExecutorService manifests, Manifest manifest, int interval) {
+        manifests.scheduleWithFixedDelay(new Runnable() {
+            // Only the first refresh is logged, later ones are routine
+            private boolean first = true;
+
+            @Override public void run() {
+                long start = System.currentTimeMillis();
+                try {
+                    int count = manifest.refresh().size();
+                    if (first) {
+                        System.out.println("Manifest checked against storage in " + (System.currentTimeMillis() - start) + "ms (" + count + " files)");
+                        first = false;
+                    }
+                } catch (IOException e) {
+                    System.out.println("Could not check manifest against storage (" + e.getMessage() + ")");
+                }
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    private static void saveSnapshot(Manifest manifest, Path snapshot) {
+        try {
+            manifest.save(snapshot);
+        } catch (IOException e) {
+            System.out.println("Could not save manifest snapshot (" + e.getMessage() + ")");
+        }
+    }
+
+    // TLS is enabled by --tls-keystore=file (with --tls-password), connections to other servers then use TLS too,
+    // trusting the certificates in --tls-truststore or, by default, the server's own keystore (eg. one shared by a cluster)
+    // Returns false if TLS was asked for but couldn't be set up, as falling back to plaintext would be unsafe
+    private static boolean setupTls(List<String> options) {
+        String keyStore = getOption(options, "tls-keystore", null);
+        if (keyStore == null) {
+            return true;
+        }
+
+        char[] password = getOption(options, "tls-password", "").toCharArray();
+        String trustStore = getOption(options, "tls-truststore", keyStore);
+        try {
+            TLS = Tls.serverContext(keyStore, password);
+            TLS_CLIENT = Tls.clientContext(trustStore, password);
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            System.out.println("Could not set up TLS (" + e.getMessage() + ")");
+            return false;
+        }
+    }
+
+    // Builds the storage for a cluster from the ids (host:port) of its nodes
+    // This node's files stay in the local storage, every other node is reached over the network
+    private static Storage createCluster(String cluster, String self, int replicas, int timeout) {
+        // This node's files are listed from its own manifest, so building the cluster's manifest hashes nothing
+        // (other nodes send their hashes too) and it doesn't need a snapshot of its own
+        Storage local = new ManifestedStorage(LOCAL_STORAGE, LOCAL_MANIFEST);
+
+        Map<String, Storage> nodes = new LinkedHashMap<>();
+        for (String id : cluster.split(",")) {
+            if (id.equals(self)) {
+                nodes.put(id, local);
+                continue;
+            }
+
+            int colon = id.lastIndexOf(':');
+            try {
+                nodes.put(id, new RemoteStorage(id.substring(0, colon), Integer.parseInt(id.substring(colon + 1)), timeout, TLS_CLIENT, true));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                System.out.println("Ignoring invalid cluster node '" + id + "', expected host:port");
+            }
+        }
+
+        // This node always holds its share of the files, even if it wasn't listed
+        if (!nodes.containsKey(self)) {
+            nodes.put(self, local);
+        }
+
+        System.out.println("Node " + self + " in a cluster of " + nodes.size() + " with " + replicas + " copies of each file");
+        return new ClusterStorage(nodes, replicas);
+    }
+
+    // Builds the storage for a caching proxy in front of the server at upstream (host:port)
+    // Returns null if it can't be set up, serving the cache on its own would look like a working proxy with missing files
+    // The proxy connects as an ordinary client, so a cluster node upstream serves every file in the cluster
+    private static Storage createProxy(String upstream, Storage cache, long budget, int timeout) {
+        int colon = upstream.lastIndexOf(':');
+        try {
+            Storage remote = new RemoteStorage(upstream.substring(0, colon), Integer.parseInt(upstream.substring(colon + 1)), timeout, TLS_CLIENT, false);
+            System.out.println("Proxying " + upstream + " with a " + budget / (1024 * 1024) + "MB cache");
+            return new CachingStorage(remote, cache, budget);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            System.out.println("Invalid upstream server '" + upstream + "', expected host:port");
+        } catch (IOException e) {
+            System.out.println("Could not open cache (" + e.getMessage() + ")");
+        }
+        return null;
+    }
+
+    // Returns the value of --name=value, or the default value if it wasn't given
+    private static String getOption(List<String> options, String name, String defaultVal) {
+        String prefix = "--" + name + "=";
+        for (String option : options) {
+            if (option.startsWith(prefix)) {
+                return option.substring(prefix.length());
+            }
+        }
+        return defaultVal;
+    }
+
     // Attempts to read a value from the command line as an integer
     // Returns the default value if this cannot be done
     private static int parseCommandLineInteger(String[] args, int index, String errMsg, int defaultVal) {
@@ -68,9 +416,18 @@ public class Server {
             return defaultVal;
         }
 
+        return parseOptionInteger(args[index], errMsg, defaultVal);
+    }
+
+    // As above, for an option's value (null if it wasn't given)
+    private static int parseOptionInteger(String value, String errMsg, int defaultVal) {
+        if (value == null) {
+            return defaultVal;
+        }
+
         // Attempt to parse and return the int
         try {
-            int val = Integer.parseInt(args[index]);
+            int val = Integer.parseInt(value);
 
             if (val < 1) {
                 System.out.println(errMsg);
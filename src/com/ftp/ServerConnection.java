@@ -3,18 +3,28 @@ package com.ftp;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
 import java.util.List;
 
 public class ServerConnection implements Runnable{
+    // Size of the chunks files are streamed in
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private int id;
 
     private Socket socket;
     private DataInputStream input;
     private DataOutputStream output;
 
+    // Clients see the whole cluster, other cluster nodes only see what's stored on this one
+    private Storage storage = Server.STORAGE;
+    private Manifest manifest = Server.MANIFEST;
+
     ServerConnection(Socket clientSocket, int id) {
         this.socket = clientSocket;
         this.id = id;
@@ -24,8 +34,13 @@ public class ServerConnection implements Runnable{
         log("Client connected");
 
         try {
-            input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
+            OutputStream socketOut = Tls.output(socket);
+            input = new DataInputStream(Tls.input(socket, socketOut));
+            output = new DataOutputStream(socketOut);
+
+            // Let the client know it has been admitted
+            output.writeBoolean(true);
+            output.flush();
 
             try {
                 mainLoop();
@@ -36,6 +51,7 @@ public class ServerConnection implements Runnable{
                     log("Sending error message back to client");
                     output.writeBoolean(false);
                     output.writeUTF(e.getMessage());
+                    output.writeInt(0);
                 }
 
                 log("Attempting to end connection gracefully");
@@ -53,6 +69,7 @@ public class ServerConnection implements Runnable{
             try { socket.close(); } catch (IOException f) { /* Do nothing */ }
         }
 
+        Server.ADMISSION.releaseConnection();
         log("Client disconnected");
     }
 
@@ -79,6 +96,17 @@ public class ServerConnection implements Runnable{
                 case "DELF":
                     delete();
                     break;
+                case "SYNC":
+                    sync();
+                    break;
+                case "STAT":
+                    stat();
+                    break;
+                case "PEER":
+                    log("Connection is from another cluster node");
+                    storage = Server.LOCAL_STORAGE;
+                    manifest = Server.LOCAL_MANIFEST;
+                    break;
                 case "QUIT":
                     log("QUIT triggered by client");
                     break wait;
@@ -87,23 +115,24 @@ public class ServerConnection implements Runnable{
                     log("Terminating connection due to client error");
                     break wait;
             }
+
+            // Every operation ends with a complete response
+            output.flush();
         }
     }
 
     private void delete() throws IOException, ClientError {
         log("Client is requesting to delete a file");
 
-        // Receive filename and add base directory
+        // Receive filename
         String filename = getFilename(false);
-        String fullPath = filenameAddBaseDir(filename);
 
         // Server returns 1 or -1 based on whether or not the file exists
-        File file = new File(fullPath);
-        if (file.exists()) {
-            log("Waiting for confirmation to delete: " + fullPath);
+        if (storage.stat(filename) != null) {
+            log("Waiting for confirmation to delete: " + filename);
             output.writeInt(1);
         } else {
-            log("File doesn't exist: " + fullPath);
+            log("File doesn't exist: " + filename);
             output.writeInt(-1);
             return;
         }
@@ -122,7 +151,8 @@ public class ServerConnection implements Runnable{
 
         // Delete file
         String msg;
-        if (file.delete()) {
+        if (storage.delete(filename)) {
+            manifest.remove(filename);
             msg = "File deleted";
         } else {
             msg = "Error deleting file";
@@ -136,56 +166,156 @@ public class ServerConnection implements Runnable{
         log("Client is requesting to download a file");
 
         String filename = getFilename(false);
-        String fullPath = filenameAddBaseDir(filename);
 
         // Check if file exists
-        File file = new File(fullPath);
-        if (!file.exists()) {
+        // Storage that can't answer (eg. a cluster node that's down) gets the client to retry rather than dropping it
+        StoredFile file;
+        try {
+            file = storage.stat(filename);
+        } catch (IOException e) {
+            log("Could not check \"" + filename + "\" (" + e.getMessage() + "), telling client to retry");
+            output.writeInt(-2);
+            output.writeInt(Server.ADMISSION.getRetryAfter());
+            return;
+        }
+        if (file == null) {
             log("The file \"" + filename + "\" does not exist on the server");
             output.writeInt(-1);
             return;
         }
 
-        // Send the file size back to the client
-        // Since we're limited to 32 bit integers for the file size, then this will cause the server to crash on files larger than 2^31 bytes
-        output.writeInt((int) file.length());
+        // Tell the client to come back later if we're already moving too much data
+        // -2 is followed by the number of ms to wait before retrying
+        long fileSize = file.getSize();
+        if (!Server.ADMISSION.tryAcquireTransfer(fileSize)) {
+            log("Too many transfers in progress, telling client to retry");
+            output.writeInt(-2);
+            output.writeInt(Server.ADMISSION.getRetryAfter());
+            return;
+        }
+
+        try {
+            // Open the file before replying, once the size is sent the only way to report a failure is to drop the connection
+            ReadableByteChannel opened;
+            try {
+                opened = storage.openRead(filename, 0, fileSize);
+            } catch (NoSuchFileException e) {
+                log("The file \"" + filename + "\" was deleted before it could be sent");
+                output.writeInt(-1);
+                return;
+            } catch (IOException e) {
+                // A busy server holding the file says how long to wait, otherwise use our own delay
+                int retryAfter = e instanceof Storage.BusyException ? ((Storage.BusyException) e).getRetryAfter() : Server.ADMISSION.getRetryAfter();
+                log("Could not open \"" + filename + "\" (" + e.getMessage() + "), telling client to retry");
+                output.writeInt(-2);
+                output.writeInt(retryAfter);
+                return;
+            }
+
+            try (ReadableByteChannel channel = opened) {
+                // Send the file size back to the client
+                // Since we're limited to 32 bit integers for the file size, then this will cause the server to crash on files larger than 2^31 bytes
+                output.writeInt((int) fileSize);
 
-        // Read file from disk while we wait for client to respond
-        log("Reading file from disk");
-        byte[] bytes = Files.readAllBytes(file.toPath());
+                // Wait for client to return ready
+                if (!input.readBoolean()) {
+                    log("Client returned false for ready status");
+                    return;
+                }
 
-        // Wait for client to return ready
-        if (!input.readBoolean()) {
-            log("Client returned false for ready status");
+                // Send bytes to client
+                sendFile(channel, fileSize);
+                log("Bytes sent");
+            }
+        } finally {
+            Server.ADMISSION.releaseTransfer(fileSize);
+        }
+    }
+
+    // Streams size bytes from the channel to the client
+    // File to socket goes through transferTo so the OS can copy directly without passing through the JVM
+    private void sendFile(ReadableByteChannel channel, long size) throws IOException {
+        SocketChannel socketChannel = Tls.rawChannel(socket);
+        if (channel instanceof FileChannel && socketChannel != null) {
+            FileChannel fileChannel = (FileChannel) channel;
+            long start = fileChannel.position();
+            long sent = 0;
+            while (sent < size) {
+                long n = fileChannel.transferTo(start + sent, size - sent, socketChannel);
+                if (n <= 0 && start + sent >= fileChannel.size()) {
+                    throw new EOFException("File shrank while it was being sent");
+                }
+                sent += n;
+            }
             return;
         }
 
-        // Send bytes to client
-        output.write(bytes);
-        log("Bytes sent");
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long sent = 0;
+        while (sent < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(BUFFER_SIZE, size - sent));
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("File shrank while it was being sent");
+            }
+            output.write(buffer.array(), 0, buffer.position());
+            sent += buffer.position();
+        }
     }
 
     private void list() throws IOException {
         log("Sending listings to client");
-        List<String> listings = new ArrayList<>();
-
-        // Get listings by traversing through source directory
-        Files.walk(Paths.get(Server.BASE_DIR))
-                .filter(Files::isRegularFile)
-                .forEach(path -> {
-                    String listing = path.toString().substring(Server.BASE_DIR.length());
-                    listings.add(listing);
-                });
+        List<StoredFile> listings;
+        try {
+            listings = storage.list();
+        } catch (Storage.PartialListingException e) {
+            // A listing is only for looking at, so what could be listed is better than nothing
+            log("Sending partial listings (" + e.getMessage() + ")");
+            listings = e.getFiles();
+        }
 
         // Send listings to client
         output.writeInt(listings.size());
-        for (String listing : listings) {
-            output.writeUTF(listing);
+        for (StoredFile listing : listings) {
+            output.writeUTF(listing.getName());
         }
 
         log("Sent listings to client");
     }
 
+    // Replies with whether the file exists, followed by its size and modification time if it does
+    private void stat() throws IOException, ClientError {
+        String filename = getFilename(false);
+        StoredFile file = storage.stat(filename);
+
+        output.writeBoolean(file != null);
+        if (file != null) {
+            output.writeLong(file.getSize());
+            output.writeLong(file.getModified());
+        }
+    }
+
+    // Sends the manifest as it is, it's kept current in the background (see Server.keepCurrent)
+    // Until it has been built for the first time the reply is -2 and how long to wait before asking again
+    private void sync() throws IOException {
+        if (!manifest.isReady()) {
+            log("Manifest is still being built, telling client to retry");
+            output.writeInt(-2);
+            output.writeInt(Server.MANIFEST_RETRY_AFTER);
+            return;
+        }
+
+        log("Sending manifest to client");
+        List<ManifestEntry> entries = manifest.entries();
+
+        output.writeInt(entries.size());
+        for (ManifestEntry entry : entries) {
+            entry.write(output);
+        }
+
+        log("Sent " + entries.size() + " manifest entries to client");
+    }
+
     private void upload() throws IOException, ClientError {
         log("Client is requesting to upload a file");
 
@@ -193,7 +323,6 @@ public class ServerConnection implements Runnable{
         long startTime = System.currentTimeMillis();
 
         String fileName = getFilename(true);
-        String fullPath = filenameAddBaseDir(fileName);
         log("Filename: " + fileName);
 
         // Get filesize
@@ -203,32 +332,87 @@ public class ServerConnection implements Runnable{
         }
         log("Filesize: " + fileSize);
 
+        // Reject with a retry hint if we're already moving too much data
+        if (!Server.ADMISSION.tryAcquireTransfer(fileSize)) {
+            log("Too many transfers in progress, telling client to retry");
+            output.writeBoolean(false);
+            output.writeUTF(Server.ADMISSION.busyMessage());
+            output.writeInt(Server.ADMISSION.getRetryAfter());
+            return;
+        }
+
+        try {
+            // Open the destination before accepting so that storage errors can be reported without receiving any data
+            Storage.PendingWrite write;
+            try {
+                write = storage.openWrite(fileName, fileSize);
+            } catch (IOException e) {
+                log("Error opening file for writing (" + e.getMessage() + ")");
+                output.writeBoolean(false);
+                output.writeUTF("Server error, could not write to disk (" + e.getMessage() + ")");
+                output.writeInt(0);
+                return;
+            }
+
+            try (Storage.PendingWrite pending = write) {
+                receiveUpload(fileName, pending, fileSize, startTime);
+            }
+        } finally {
+            Server.ADMISSION.releaseTransfer(fileSize);
+        }
+    }
+
+    private void receiveUpload(String fileName, Storage.PendingWrite write, int fileSize, long startTime) throws IOException {
         // Receive data from client
         log("Ready to receive data");
         output.writeBoolean(true);
 
-        // Declare our array of bytes
-        byte[] bytes = new byte[fileSize];
+        // Each chunk is written out and hashed as it arrives, so memory use doesn't depend on the file size
+        // If writing fails, the rest of the data still has to be read to keep the connection in step
+        MessageDigest digest = ManifestEntry.newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        IOException writeError = null;
         int totBytesRead = 0;
 
-        // Read as many bytes as possible until buffer is full
+        // A client that goes away part way through (eg. a cancelled transfer) ends the connection
         while (totBytesRead < fileSize) {
-            int bytesRead = input.read(bytes, totBytesRead, fileSize - totBytesRead);
+            int bytesRead = input.read(buffer, 0, Math.min(BUFFER_SIZE, fileSize - totBytesRead));
+            if (bytesRead < 0) {
+                throw new EOFException("Client closed the connection after " + totBytesRead + " bytes");
+            }
             totBytesRead += bytesRead;
+
+            if (writeError == null) {
+                try {
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while (chunk.hasRemaining()) {
+                        write.write(chunk);
+                    }
+                    digest.update(buffer, 0, bytesRead);
+                } catch (IOException e) {
+                    writeError = e;
+                }
+            }
         }
 
-        // Write file out
-        File outFile = new File(fullPath);
-        //noinspection ResultOfMethodCallIgnored
-        outFile.getParentFile().mkdirs();
-        try (FileOutputStream stream = new FileOutputStream(outFile)) {
-            stream.write(bytes);
-        } catch (IOException e) {
+        if (writeError == null) {
+            try {
+                write.commit();
+            } catch (IOException e) {
+                writeError = e;
+            }
+        }
+
+        if (writeError != null) {
             log("Error writing file to disk");
-            log(e.getMessage());
-            output.writeUTF("Server error, could not write to disk (" + e.getMessage() + ")");
+            log(writeError.getMessage());
+            output.writeUTF("Server error, could not write to disk (" + writeError.getMessage() + ")");
+            return;
         }
 
+        // Keep the SYNC manifest current without having to read the file back
+        manifest.update(fileName, ManifestEntry.toHex(digest.digest()));
+
         // Gather statistics
         long endTime = System.currentTimeMillis();
         double timeTaken = (endTime - startTime);
@@ -240,7 +424,7 @@ public class ServerConnection implements Runnable{
         log("Upload finished");
     }
 
-    // Retrieves a filename in the form of short + char array
+    // Retrieves a filename in the form of short + char array, normalised so every storage sees one spelling of each name
     // If a client error occurs during this, then sendErrorBack will determine how the client error is thrown
     private String getFilename(boolean sendErrorBack) throws IOException, ClientError {
         // Get length of filename
@@ -255,11 +439,12 @@ public class ServerConnection implements Runnable{
             fileNameChar[i] = input.readChar();
         }
 
-        return new String(fileNameChar);
-    }
-
-    private String filenameAddBaseDir(String filename) {
-        return Server.BASE_DIR + filename;
+        // Names that would escape the storage root (eg. "../x") are refused outright
+        String filename = PathResolver.normalise(new String(fileNameChar));
+        if (filename == null) {
+            throw new ClientError("Invalid filename: " + new String(fileNameChar), sendErrorBack);
+        }
+        return filename;
     }
 
     private void log(String msg) {
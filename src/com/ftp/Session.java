@@ -0,0 +1,148 @@
+package com.ftp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// A pool of connections to a single server so that several operations can run at once
+// Each operation gets a connection to itself for its whole duration, so the protocol is unchanged
+class Session {
+    // Idle connections aren't reused after this long (ms), they're closed the next time the pool is used
+    // Each one holds a connection slot on the server for as long as it's open, and the longer one has been
+    // idle the more likely it is that the server or something in between has cut it
+    private static final int MAX_IDLE = 30 * 1000;
+
+    // Connection details
+    private final String ip;
+    private final int port;
+    private final int timeout;
+
+    // Limits the number of connections in use at once
+    // Idle connections are always reused before a new one is opened, so this also caps the total open
+    private final Semaphore permits;
+    private final Deque<IdleClient> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private Session(String ip, int port, int timeout, int maxConnections) {
+        this.ip = ip;
+        this.port = port;
+        this.timeout = timeout;
+        this.permits = new Semaphore(maxConnections);
+    }
+
+    // Runs an operation on a pooled connection and returns its result
+    // The connection is dropped rather than reused if failed reports a server/socket error
+    // Returns null if no connection could be made
+    public <T> T execute(Function<Client, T> operation, Predicate<T> failed) {
+        Client client = acquire();
+        if (client == null) {
+            return null;
+        }
+
+        T result = null;
+        try {
+            result = operation.apply(client);
+        } finally {
+            release(client, result != null && !failed.test(result));
+        }
+
+        return result;
+    }
+
+    // Takes an idle connection, or opens a new one if none are idle
+    // Blocks while the pool is at capacity, returns null if a connection couldn't be made
+    public Client acquire() {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        List<Client> expired = new ArrayList<>();
+        try {
+            synchronized (this) {
+                if (closed) {
+                    permits.release();
+                    return null;
+                }
+
+                IdleClient pooled;
+                while ((pooled = idle.poll()) != null) {
+                    if (System.currentTimeMillis() - pooled.releasedAt < MAX_IDLE) {
+                        return pooled.client;
+                    }
+                    expired.add(pooled.client);
+                }
+            }
+        } finally {
+            // Closed outside the lock, as quitting writes to the server
+            for (Client client : expired) {
+                client.quit();
+            }
+        }
+
+        Client client = Client.connect(ip, port, timeout);
+        if (client == null) {
+            permits.release();
+        }
+
+        return client;
+    }
+
+    // Returns a connection to the pool, or closes it if it shouldn't be reused
+    public void release(Client client, boolean reusable) {
+        synchronized (this) {
+            if (reusable && !closed) {
+                idle.push(new IdleClient(client));
+                permits.release();
+                return;
+            }
+        }
+
+        client.quit();
+        permits.release();
+    }
+
+    // Closes idle connections now, and busy ones as soon as they are released
+    public void close() {
+        List<Client> toClose = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (IdleClient pooled : idle) {
+                toClose.add(pooled.client);
+            }
+            idle.clear();
+        }
+
+        for (Client client : toClose) {
+            client.quit();
+        }
+    }
+
+    // Factory method to create a session
+    // One connection is made straight away so that an unreachable server is reported immediately
+    public static Session open(String ip, int port, int timeout, int maxConnections) {
+        Client client = Client.connect(ip, port, timeout);
+        if (client == null) {
+            return null;
+        }
+
+        Session session = new Session(ip, port, timeout, maxConnections);
+        session.idle.push(new IdleClient(client));
+        return session;
+    }
+
+    private static class IdleClient {
+        final Client client;
+        final long releasedAt = System.currentTimeMillis();
+
+        IdleClient(Client client) {
+            this.client = client;
+        }
+    }
+}
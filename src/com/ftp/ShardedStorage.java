@@ -0,0 +1,49 @@
+package com.ftp;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Spreads files across several storages (eg. one per disk) by a hash of their name
+// Every operation on a file only touches the one shard that owns it, apart from listing
+class ShardedStorage implements Storage {
+    private final List<Storage> shards;
+
+    ShardedStorage(List<Storage> shards) {
+        this.shards = new ArrayList<>(shards);
+    }
+
+    @Override public StoredFile stat(String name) throws IOException {
+        return shardFor(name).stat(name);
+    }
+
+    @Override public ReadableByteChannel openRead(String name, long offset, long length) throws IOException {
+        return shardFor(name).openRead(name, offset, length);
+    }
+
+    @Override public PendingWrite openWrite(String name, long size) throws IOException {
+        return shardFor(name).openWrite(name, size);
+    }
+
+    @Override public List<StoredFile> list() throws IOException {
+        List<StoredFile> files = new ArrayList<>();
+        for (Storage shard : shards) {
+            files.addAll(shard.list());
+        }
+        return files;
+    }
+
+    @Override public boolean delete(String name) throws IOException {
+        return shardFor(name).delete(name);
+    }
+
+    // CRC32 rather than hashCode so a file maps to the same shard across JVM versions
+    private Storage shardFor(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(StandardCharsets.UTF_8));
+        return shards.get((int) (crc.getValue() % shards.size()));
+    }
+}
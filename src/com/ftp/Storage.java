@@ -0,0 +1,70 @@
+package com.ftp;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Where the server keeps its files
+// Names are relative to the root of the storage and always use '/' as the separator
+interface Storage {
+    // Returns null if the file doesn't exist
+    StoredFile stat(String name) throws IOException;
+
+    // Opens a file for reading from offset, the caller reads at most length bytes from the channel
+    ReadableByteChannel openRead(String name, long offset, long length) throws IOException;
+
+    // Starts writing a file that will be size bytes long
+    // Nothing is visible under the name until the write is committed, closing without committing discards it
+    PendingWrite openWrite(String name, long size) throws IOException;
+
+    // Every file currently stored
+    List<StoredFile> list() throws IOException;
+
+    // Returns false if the file doesn't exist or couldn't be deleted
+    boolean delete(String name) throws IOException;
+
+    interface PendingWrite extends WritableByteChannel {
+        void commit() throws IOException;
+    }
+
+    // Thrown when another server is too busy to do something right now, with how long it asked to be left for (ms)
+    class BusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfter;
+
+        BusyException(String message, int retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+
+        int getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+    // Thrown by list when some of the files couldn't be listed (eg. a cluster node that couldn't be reached)
+    // It carries what was listed, and which names it vouches for: a missing name is only known to be deleted if it's complete
+    class PartialListingException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final List<StoredFile> files;
+        private final Predicate<String> complete;
+
+        PartialListingException(String message, List<StoredFile> files, Predicate<String> complete) {
+            super(message);
+            this.files = files;
+            this.complete = complete;
+        }
+
+        List<StoredFile> getFiles() {
+            return files;
+        }
+
+        boolean isComplete(String name) {
+            return complete.test(name);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.ftp;
+
+// The metadata of a stored file
+class StoredFile {
+    private final String name;
+    private final long size;
+    private final long modified;
+    private final String hash;
+
+    StoredFile(String name, long size, long modified) {
+        this(name, size, modified, null);
+    }
+
+    // Some storages already know the hash of their files (eg. from another server's manifest)
+    StoredFile(String name, long size, long modified, String hash) {
+        this.name = name;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
+    // Null if the hash isn't known without reading the file
+    public String getHash() {
+        return hash;
+    }
+}
@@ -0,0 +1,195 @@
+package com.ftp;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// Optional TLS for connections between clients and servers
+// Contexts are created once and shared by every connection, which is what lets a client resume its
+// previous session with a server instead of doing a full handshake each time it connects.
+// An SSLEngine for a non-blocking server can be created from the same contexts
+class Tls {
+    // How long and how many sessions are kept for resumption
+    private static final int SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+    private static final int SESSION_CACHE_SIZE = 1000;
+
+    // Records are at most 16KB, buffering at least that much keeps small protocol writes in one record
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    // Context for a server, using the first key in a keystore (JKS or PKCS12)
+    static SSLContext serverContext(String keyStore, char[] password) throws GeneralSecurityException, IOException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(loadKeyStore(keyStore, password), password);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        return context;
+    }
+
+    // Context for a client, trusting the certificates in trustStore or the JVM's default CAs if it's null
+    static SSLContext clientContext(String trustStore, char[] password) throws GeneralSecurityException, IOException {
+        TrustManagerFactory tmf = null;
+        if (trustStore != null) {
+            tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(loadKeyStore(trustStore, password));
+        }
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf == null ? null : tmf.getTrustManagers(), null);
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        return context;
+    }
+
+    // Starts TLS on a connection the server has just accepted, the handshake happens on first use
+    static Socket accept(SSLContext context, Socket socket) throws IOException {
+        // Output is buffered (see output) so Nagle's algorithm would only delay the handshake's small messages
+        socket.setTcpNoDelay(true);
+        InetSocketAddress peer = (InetSocketAddress) socket.getRemoteSocketAddress();
+        SSLSocket ssl = (SSLSocket) context.getSocketFactory().createSocket(socket, peer.getHostString(), peer.getPort(), true);
+        ssl.setUseClientMode(false);
+
+        // The server's preference decides the cipher, so clients that support AES-GCM always get it
+        SSLParameters params = ssl.getSSLParameters();
+        params.setCipherSuites(preferredCipherSuites(ssl.getEnabledCipherSuites()));
+        params.setUseCipherSuitesOrder(true);
+        ssl.setSSLParameters(params);
+        return ssl;
+    }
+
+    // Connects to a server, giving up after timeout ms, sessions are only resumed for the same host and port
+    // The socket factory can't connect with a timeout, so TLS is layered over a socket connected first
+    static Socket connect(SSLContext context, String host, int port, int timeout) throws IOException {
+        Socket socket = new Socket();
+        SSLSocket ssl;
+        try {
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            ssl = (SSLSocket) context.getSocketFactory().createSocket(socket, host, port, true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        ssl.setTcpNoDelay(true);
+
+        SSLParameters params = ssl.getSSLParameters();
+        params.setCipherSuites(preferredCipherSuites(ssl.getEnabledCipherSuites()));
+
+        // A trusted certificate isn't enough, it has to be for the host being connected to
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+
+        // Tells a server with several certificates which one is wanted, IP addresses can't be sent this way
+        if (!isIpAddress(host)) {
+            try {
+                params.setServerNames(Collections.singletonList(new SNIHostName(host)));
+            } catch (IllegalArgumentException e) {
+                // Not a valid DNS name, the server's default certificate still has to match it
+            }
+        }
+
+        ssl.setSSLParameters(params);
+        return ssl;
+    }
+
+    private static boolean isIpAddress(String host) {
+        return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+    }
+
+    // The enabled suites with AES-GCM first, as it's the cheapest on CPUs with AES instructions
+    // AES-128 goes before AES-256 as it's faster and the security margin isn't needed here
+    static String[] preferredCipherSuites(String[] enabled) {
+        List<String> gcm128 = new ArrayList<>();
+        List<String> gcm256 = new ArrayList<>();
+        List<String> rest = new ArrayList<>();
+        for (String suite : enabled) {
+            if (suite.contains("AES_128_GCM")) {
+                gcm128.add(suite);
+            } else if (suite.contains("AES_256_GCM")) {
+                gcm256.add(suite);
+            } else {
+                rest.add(suite);
+            }
+        }
+
+        List<String> ordered = new ArrayList<>(gcm128);
+        ordered.addAll(gcm256);
+        ordered.addAll(rest);
+        return ordered.toArray(new String[0]);
+    }
+
+    // The socket's channel if data can be written to it directly, null if it has to go through its streams
+    // A TLS socket layered over an accepted one returns the plaintext channel underneath, which must never be used
+    static SocketChannel rawChannel(Socket socket) {
+        return socket instanceof SSLSocket ? null : socket.getChannel();
+    }
+
+    // Each write to a TLS socket becomes a record with its own header and MAC, and the protocol writes
+    // filenames a character at a time, so TLS output is buffered. Both sides flush at the end of every
+    // message, and reading flushes too (see input) so a reply is never awaited for a request still in the buffer
+    static OutputStream output(Socket socket) throws IOException {
+        if (!(socket instanceof SSLSocket)) {
+            return socket.getOutputStream();
+        }
+        return new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    static InputStream input(Socket socket, OutputStream output) throws IOException {
+        if (!(socket instanceof SSLSocket)) {
+            return socket.getInputStream();
+        }
+        return new FlushingInputStream(socket.getInputStream(), output);
+    }
+
+    private static KeyStore loadKeyStore(String file, char[] password) throws GeneralSecurityException, IOException {
+        String type = file.endsWith(".jks") ? "JKS" : "PKCS12";
+        KeyStore store = KeyStore.getInstance(type);
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            store.load(in, password);
+        }
+        return store;
+    }
+
+    // Flushes the connection's buffered output before anything that could wait for the other side
+    private static class FlushingInputStream extends FilterInputStream {
+        private final OutputStream output;
+
+        FlushingInputStream(InputStream in, OutputStream output) {
+            super(in);
+            this.output = output;
+        }
+
+        @Override public int read() throws IOException {
+            output.flush();
+            return super.read();
+        }
+
+        @Override public int read(byte[] b, int off, int len) throws IOException {
+            output.flush();
+            return super.read(b, off, len);
+        }
+
+        @Override public long skip(long n) throws IOException {
+            output.flush();
+            return super.skip(n);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.ftp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Measures the cost of TLS by running the same transfers against a plaintext and a TLS server
+// Both ports can belong to the same machine (eg. two servers started with and without --tls-keystore)
+//
+// Usage: TransferBenchmark <ip> <plain port> <tls port> [size MB] [rounds] [options]
+// Options: --tls-truststore=file --tls-password=password (certificates to trust instead of the default CAs)
+public class TransferBenchmark {
+    // Constants
+    private final static int DEFAULT_SIZE_MB = 64;
+    private final static int DEFAULT_ROUNDS = 3;
+    private final static int TIMEOUT = 30000;
+    private final static int RECONNECTS = 20;
+    private final static String REMOTE_NAME = "transfer-benchmark.bin";
+
+    private final String ip;
+    private final File file;
+    private final int rounds;
+
+    // Results go here, the client's own logging is turned off while it runs
+    private final PrintStream results;
+
+    private TransferBenchmark(String ip, File file, int rounds, PrintStream results) {
+        this.ip = ip;
+        this.file = file;
+        this.rounds = rounds;
+        this.results = results;
+    }
+
+    // Returns the upload and download throughput in MB/s, or null if the server couldn't be used
+    private double[] run(String label, int port) {
+        // The first connection does a full handshake, with TLS later ones should resume the session
+        long start = System.nanoTime();
+        Client client = Client.connect(ip, port, TIMEOUT);
+        if (client == null) {
+            results.println(label + ": could not connect to port " + port);
+            return null;
+        }
+        double firstConnect = millisSince(start);
+        client.quit();
+
+        start = System.nanoTime();
+        for (int i = 0; i < RECONNECTS; i++) {
+            Client c = Client.connect(ip, port, TIMEOUT);
+            if (c == null) {
+                results.println(label + ": reconnect failed");
+                return null;
+            }
+            c.quit();
+        }
+        double reconnect = millisSince(start) / RECONNECTS;
+        results.printf("%-9s first connect %7.2fms, reconnect %7.2fms%n", label, firstConnect, reconnect);
+
+        client = Client.connect(ip, port, TIMEOUT);
+        if (client == null) {
+            results.println(label + ": could not connect to port " + port);
+            return null;
+        }
+
+        try {
+            List<Double> uploads = new ArrayList<>();
+            List<Double> downloads = new ArrayList<>();
+            File dest = new File(file.getPath() + ".download");
+
+            for (int i = 0; i < rounds; i++) {
+                start = System.nanoTime();
+                if (!client.upload(file, REMOTE_NAME, null).isUploaded()) {
+                    results.println(label + ": upload failed");
+                    return null;
+                }
+                uploads.add(throughput(start));
+
+                start = System.nanoTime();
+                if (!client.download(REMOTE_NAME, dest, null).isSaved()) {
+                    results.println(label + ": download failed");
+                    return null;
+                }
+                downloads.add(throughput(start));
+            }
+
+            if (!dest.delete()) {
+                results.println("Could not delete " + dest);
+            }
+            if (client.deleteRequest(REMOTE_NAME) == 1) {
+                client.deleteConfirm(true);
+            }
+
+            // The best round is the least disturbed by anything else running on the machine
+            double[] best = {max(uploads), max(downloads)};
+            results.printf("%-9s upload %8.1fMB/s, download %8.1fMB/s%n", label, best[0], best[1]);
+            return best;
+        } finally {
+            client.quit();
+        }
+    }
+
+    private double throughput(long start) {
+        return file.length() / (1024.0 * 1024.0) / (millisSince(start) / 1000);
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static double max(List<Double> values) {
+        double max = 0;
+        for (double value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: TransferBenchmark <ip> <plain port> <tls port> [size MB] [rounds] [options]");
+        System.out.println("Options: --tls-truststore=file --tls-password=password");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Split arguments into positional ones and --name=value options
+        List<String> positional = new ArrayList<>();
+        String trustStore = null;
+        String tlsPassword = "";
+        for (String arg : args) {
+            if (arg.startsWith("--tls-truststore=")) {
+                trustStore = arg.substring("--tls-truststore=".length());
+            } else if (arg.startsWith("--tls-password=")) {
+                tlsPassword = arg.substring("--tls-password=".length());
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                positional.add(arg);
+            }
+        }
+
+        if (positional.size() < 3) {
+            usage();
+        }
+
+        int plainPort = 0, tlsPort = 0, sizeMB = DEFAULT_SIZE_MB, rounds = DEFAULT_ROUNDS;
+        try {
+            plainPort = Integer.parseInt(positional.get(1));
+            tlsPort = Integer.parseInt(positional.get(2));
+            if (positional.size() > 3) sizeMB = Integer.parseInt(positional.get(3));
+            if (positional.size() > 4) rounds = Integer.parseInt(positional.get(4));
+        } catch (NumberFormatException e) {
+            usage();
+        }
+
+        // Random data so nothing along the way can compress it
+        File file = File.createTempFile("benchmark", ".bin");
+        file.deleteOnExit();
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random();
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (int i = 0; i < sizeMB; i++) {
+                random.nextBytes(chunk);
+                out.write(chunk);
+            }
+        }
+
+        PrintStream results = System.out;
+        Log.setOutput(null);
+        results.println("Transferring " + sizeMB + "MB, best of " + rounds + " rounds");
+
+        TransferBenchmark benchmark = new TransferBenchmark(positional.get(0), file, rounds, results);
+        double[] plain = benchmark.run("Plaintext", plainPort);
+
+        try {
+            Client.TLS = Tls.clientContext(trustStore, tlsPassword.toCharArray());
+        } catch (GeneralSecurityException e) {
+            results.println("Could not set up TLS (" + e.getMessage() + ")");
+            System.exit(1);
+        }
+        double[] tls = benchmark.run("TLS", tlsPort);
+
+        if (plain != null && tls != null) {
+            results.printf("TLS overhead: upload %.1f%%, download %.1f%%%n",
+                    100 * (1 - tls[0] / plain[0]), 100 * (1 - tls[1] / plain[1]));
+        }
+        System.exit(plain != null && tls != null ? 0 : 1);
+    }
+}
@@ -0,0 +1,9 @@
+package com.ftp;
+
+// Receives progress updates while a file is being transferred
+interface TransferListener {
+    void update(long transferred, long total);
+
+    // Checked between chunks, returning true aborts the transfer
+    boolean isCancelled();
+}
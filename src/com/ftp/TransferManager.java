@@ -0,0 +1,41 @@
+package com.ftp;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs uploads and downloads on a fixed number of worker threads
+// Transfers beyond that wait in the executor's queue, and both running and queued ones are listed for the UI
+class TransferManager {
+    private final ExecutorService workers;
+    private final ObservableList<TransferTask<?>> transfers = FXCollections.observableArrayList();
+
+    TransferManager(int numWorkers) {
+        workers = Executors.newFixedThreadPool(numWorkers, runnable -> {
+            Thread th = new Thread(runnable, "transfer-worker");
+            th.setDaemon(true);
+            return th;
+        });
+    }
+
+    // Must be called on the FX thread
+    public void submit(TransferTask<?> task) {
+        transfers.add(task);
+        task.onFinished = () -> transfers.remove(task);
+        workers.submit(task);
+    }
+
+    // Cancels every running and queued transfer
+    public void cancelAll() {
+        for (TransferTask<?> task : new ArrayList<>(transfers)) {
+            task.cancel();
+        }
+    }
+
+    public ObservableList<TransferTask<?>> getTransfers() {
+        return transfers;
+    }
+}
@@ -0,0 +1,55 @@
+package com.ftp;
+
+import javafx.concurrent.Task;
+
+// A single upload or download that reports its progress and throughput while it runs
+abstract class TransferTask<V> extends Task<V> implements TransferListener {
+    private final String name;
+    private long startTime;
+
+    // Set by the transfer manager, called on the FX thread however the task ends
+    Runnable onFinished;
+
+    TransferTask(String name) {
+        this.name = name;
+        updateTitle(name);
+        updateMessage("Queued");
+    }
+
+    // Performs the transfer, passing this task to the client as the listener
+    protected abstract V transfer();
+
+    @Override protected final V call() {
+        startTime = System.nanoTime();
+        updateMessage("Starting");
+        return transfer();
+    }
+
+    @Override public void update(long transferred, long total) {
+        updateProgress(transferred, total);
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        double rate = seconds > 0 ? transferred / seconds / 1024 : 0;
+        updateMessage(String.format("%,d / %,d bytes (%,.1f KB/s)", transferred, total, rate));
+    }
+
+    @Override protected void succeeded() {
+        finished();
+    }
+
+    @Override protected void cancelled() {
+        Log.log(name + " cancelled");
+        finished();
+    }
+
+    @Override protected void failed() {
+        Log.log(name + " failed (" + getException().getMessage() + ")");
+        finished();
+    }
+
+    private void finished() {
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.ftp;
+
+class UploadResult {
+    private boolean socketError;
+    private boolean uploaded;
+
+    UploadResult(boolean socketError, boolean uploaded) {
+        this.socketError = socketError;
+        this.uploaded = uploaded;
+    }
+
+    public boolean hadSocketError() {
+        return socketError;
+    }
+
+    public boolean isUploaded() {
+        return uploaded;
+    }
+}